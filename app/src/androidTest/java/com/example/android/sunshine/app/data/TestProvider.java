@@ -16,20 +16,28 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -51,6 +59,11 @@ public class TestProvider extends AndroidTestCase {
        the delete functionality in the ContentProvider.
      */
     public void deleteAllRecordsFromProvider() {
+        mContext.getContentResolver().delete(
+                HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 WeatherEntry.CONTENT_URI,
                 null,
@@ -445,6 +458,22 @@ public class TestProvider extends AndroidTestCase {
         return returnContentValues;
     }
 
+    static WeatherBatch createWeatherBatch(ContentValues[] daysValues) {
+        WeatherBatch days = new WeatherBatch(2);
+        for (ContentValues values : daysValues) {
+            days.add(values.getAsLong(WeatherEntry.COLUMN_DATE),
+                    values.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID),
+                    values.getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                    values.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                    values.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                    values.getAsDouble(WeatherEntry.COLUMN_HUMIDITY),
+                    values.getAsDouble(WeatherEntry.COLUMN_PRESSURE),
+                    values.getAsDouble(WeatherEntry.COLUMN_WIND_SPEED),
+                    values.getAsDouble(WeatherEntry.COLUMN_DEGREES));
+        }
+        return days;
+    }
+
     // Student: Uncomment this test after you have completed writing the BulkInsert functionality
     // in your provider.  Note that this test will work with the built-in (default) provider
     // implementation, which just inserts records one-at-a-time, so really do implement the
@@ -512,4 +541,451 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    // Make sure a bulk insert through a location's uri lands the same rows as one through the
+    // weather uri.
+    public void testBulkInsertForLocation() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        assertTrue(locationRowId != -1);
+
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+
+        // Inserting through the location uri announces each day written, so an observer of
+        // just the first day has to hear about it.
+        TestUtilities.TestContentObserver dayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE), false, dayObserver);
+
+        int insertCount = mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                bulkInsertContentValues);
+
+        dayObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(dayObserver);
+
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext() ) {
+            TestUtilities.validateCurrentRecord("testBulkInsertForLocation.  Error validating WeatherEntry " + i,
+                    cursor, bulkInsertContentValues[i]);
+        }
+        cursor.close();
+    }
+
+    // Make sure the location upsert adds a location once, answers later calls with the same
+    // row, and forgets that row once the location is deleted.
+    public void testUpsertLocation() {
+        Bundle extras = new Bundle();
+        extras.putString(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG, -147.353);
+
+        long locationRowId = mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_UPSERT_LOCATION, TestUtilities.TEST_LOCATION, extras)
+                .getLong(LocationEntry.KEY_LOCATION_ID);
+        assertTrue(locationRowId != -1);
+        assertEquals(locationRowId, LocationIdCache.get(TestUtilities.TEST_LOCATION));
+
+        long secondRowId = mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_UPSERT_LOCATION, TestUtilities.TEST_LOCATION, null)
+                .getLong(LocationEntry.KEY_LOCATION_ID);
+        assertEquals("Error: upserting an existing location returned another row",
+                locationRowId, secondRowId);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI,
+                null,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TestUtilities.TEST_LOCATION},
+                null
+        );
+        assertEquals("Error: upserting a location twice added two rows", 1, cursor.getCount());
+        cursor.close();
+
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        assertEquals("Error: deleting locations did not invalidate the location id cache",
+                LocationIdCache.NO_ID, LocationIdCache.get(TestUtilities.TEST_LOCATION));
+    }
+
+    // Make sure a WeatherBatch written through the provider's call method lands the same rows
+    // as the equivalent bulkInsert.
+    public void testInsertDays() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        assertTrue(locationRowId != -1);
+
+        ContentValues[] expectedValues = createBulkInsertWeatherValues(locationRowId);
+        WeatherBatch days = createWeatherBatch(expectedValues);
+
+        TestUtilities.TestContentObserver dayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE), false, dayObserver);
+
+        Bundle result = mContext.getContentResolver().call(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                WeatherEntry.METHOD_INSERT_DAYS, TestUtilities.TEST_LOCATION,
+                days.toBundle(locationRowId));
+
+        dayObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(dayObserver);
+
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                result.getInt(WeatherEntry.KEY_INSERTED_COUNT));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext() ) {
+            TestUtilities.validateCurrentRecord("testInsertDays.  Error validating WeatherEntry " + i,
+                    cursor, expectedValues[i]);
+        }
+        cursor.close();
+    }
+
+    // Make sure a query that only asks for weather columns and the setting, which the provider
+    // answers without joining the location table, sees the same rows as a joined one.
+    public void testWeatherQueryWithoutJoin() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] expectedValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, expectedValues);
+
+        String[] projection = new String[]{
+                WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                LocationEntry.COLUMN_LOCATION_SETTING
+        };
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE),
+                projection,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext() ) {
+            assertEquals(TestUtilities.TEST_LOCATION, cursor.getString(3));
+            assertEquals(expectedValues[i].getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                    cursor.getDouble(2));
+        }
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE),
+                projection,
+                null,
+                null,
+                null
+        );
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // A location that was never stored has no days, joined or not
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation("nowhere"), projection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    // Make sure a repeated weather query is answered from the query cache, and that a write to
+    // the day it read makes the next one go back to the database.
+    public void testQueryCache() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        Uri dayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE);
+        String[] projection = new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC};
+
+        Cursor cursor = mContext.getContentResolver().query(dayUri, projection, null, null, null);
+        cursor.close();
+        Bundle before = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_QUERY_CACHE_STATS, null, null);
+
+        cursor = mContext.getContentResolver().query(dayUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Asteroids", cursor.getString(1));
+        cursor.close();
+        Bundle afterHit = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_QUERY_CACHE_STATS, null, null);
+        assertEquals("Error: the repeated query was not answered from the cache",
+                before.getInt(WeatherEntry.KEY_CACHE_HITS) + 1,
+                afterHit.getInt(WeatherEntry.KEY_CACHE_HITS));
+
+        ContentValues updatedValues = new ContentValues();
+        updatedValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, updatedValues,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(WeatherContract.normalizeDate(TestUtilities.TEST_DATE))});
+
+        cursor = mContext.getContentResolver().query(dayUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the cache answered with a day that has since changed",
+                "Meteors", cursor.getString(1));
+        cursor.close();
+        Bundle afterWrite = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_QUERY_CACHE_STATS, null, null);
+        assertEquals(afterHit.getInt(WeatherEntry.KEY_CACHE_MISSES) + 1,
+                afterWrite.getInt(WeatherEntry.KEY_CACHE_MISSES));
+    }
+
+    // Make sure an update announces the day it changed, and leaves the other days' observers alone.
+    public void testUpdateNotifiesChangedDay() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        long millisecondsInADay = 1000*60*60*24;
+
+        TestUtilities.TestContentObserver dayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE), false, dayObserver);
+        TestUtilities.TestContentObserver otherDayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE + millisecondsInADay), false, otherDayObserver);
+
+        ContentValues updatedValues = new ContentValues();
+        updatedValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        int count = mContext.getContentResolver().update(
+                WeatherEntry.CONTENT_URI, updatedValues,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(locationRowId),
+                        Long.toString(WeatherContract.normalizeDate(TestUtilities.TEST_DATE))});
+        assertEquals(1, count);
+
+        // Both observers are told in the same dispatch, so by now the other one would have heard
+        dayObserver.waitForNotificationOrFail();
+        assertFalse("Error: the update announced a day it did not change",
+                otherDayObserver.mContentChanged);
+        otherDayObserver.mHT.quit();
+        mContext.getContentResolver().unregisterContentObserver(dayObserver);
+        mContext.getContentResolver().unregisterContentObserver(otherDayObserver);
+    }
+
+    // Make sure a batch is written in one transaction: all of it, or none of it on failure.
+    public void testApplyBatch() throws Exception {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        Uri locationUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        ContentValues[] expectedValues = createBulkInsertWeatherValues(locationRowId);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ContentValues values : expectedValues) {
+            operations.add(ContentProviderOperation.newInsert(locationUri)
+                    .withValues(values)
+                    .build());
+        }
+        // Fails, since there is no such location, and so must take the inserts down with it
+        operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withValue(LocationEntry.COLUMN_CITY_NAME, "Nowhere")
+                .withSelection(LocationEntry._ID + " = ?",
+                        new String[]{Long.toString(locationRowId + 1)})
+                .withExpectedCount(1)
+                .build());
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: the batch should have failed on its last operation");
+        } catch (OperationApplicationException e) {
+            // Expected
+        }
+        Cursor cursor = mContext.getContentResolver().query(locationUri, null, null, null, null);
+        assertEquals("Error: a failed batch left rows behind", 0, cursor.getCount());
+        cursor.close();
+
+        operations.remove(operations.size() - 1);
+        TestUtilities.TestContentObserver dayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE), false, dayObserver);
+
+        ContentProviderResult[] results = mContext.getContentResolver()
+                .applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+
+        dayObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(dayObserver);
+
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, results.length);
+        cursor = mContext.getContentResolver().query(
+                locationUri,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext() ) {
+            TestUtilities.validateCurrentRecord("testApplyBatch.  Error validating WeatherEntry " + i,
+                    cursor, expectedValues[i]);
+        }
+        cursor.close();
+    }
+
+    // Make sure a METHOD_APPLY_BATCH call can add a location and write a WeatherBatch for it in
+    // one transaction, the days taking the location's row ID through a back-reference, and
+    // that a failed call keeps neither.
+    public void testApplyBatchWithDays() {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        // Only the row ID is read from the days' values, and the back-reference supplies it
+        ContentValues[] expectedValues = createBulkInsertWeatherValues(0);
+        WeatherBatch days = createWeatherBatch(expectedValues);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.buildLocationUpsertUri())
+                .withValues(locationValues)
+                .build());
+        operations.add(ContentProviderOperation.newInsert(
+                WeatherEntry.buildWeatherLocationDays(TestUtilities.TEST_LOCATION))
+                .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                .build());
+        // Fails, since there is no such row, and so must take the location and days down too
+        operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withValue(LocationEntry.COLUMN_CITY_NAME, "Nowhere")
+                .withSelection(LocationEntry._ID + " = ?", new String[]{"-1"})
+                .withExpectedCount(1)
+                .build());
+
+        Bundle extras = new Bundle();
+        extras.putBundle(WeatherEntry.getDaysKey(TestUtilities.TEST_LOCATION), days.toBundle(0));
+        extras.putParcelableArrayList(WeatherContract.KEY_OPERATIONS, operations);
+        assertNull("Error: the batch should have failed on its last operation",
+                mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                        WeatherContract.METHOD_APPLY_BATCH, null, extras));
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: a failed batch left a location behind", 0, cursor.getCount());
+        cursor.close();
+        assertEquals("Error: a failed batch left a location ID cached",
+                LocationIdCache.NO_ID, LocationIdCache.get(TestUtilities.TEST_LOCATION));
+
+        operations.remove(operations.size() - 1);
+        extras.putParcelableArrayList(WeatherContract.KEY_OPERATIONS, operations);
+        assertNotNull(mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_APPLY_BATCH, null, extras));
+
+        long locationRowId = LocationIdCache.get(TestUtilities.TEST_LOCATION);
+        assertTrue("Error: the batch didn't add the location",
+                locationRowId != LocationIdCache.NO_ID);
+        expectedValues = createBulkInsertWeatherValues(locationRowId);
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext() ) {
+            TestUtilities.validateCurrentRecord(
+                    "testApplyBatchWithDays.  Error validating WeatherEntry " + i,
+                    cursor, expectedValues[i]);
+        }
+        cursor.close();
+    }
+
+    // Make sure a range query returns exactly the 3-hourly points inside the range, in order.
+    public void testHourlyRangeQuery() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+
+        final long stepMillis = 1000 * 60 * 60 * 3;
+        final int pointCount = 8;
+        ContentValues[] hourlyValues = new ContentValues[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            ContentValues values = new ContentValues();
+            values.put(HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+            values.put(HourlyEntry.COLUMN_TIME, TestUtilities.TEST_DATE + i * stepMillis);
+            values.put(HourlyEntry.COLUMN_WEATHER_ID, 321);
+            values.put(HourlyEntry.COLUMN_SHORT_DESC, "Asteroids");
+            values.put(HourlyEntry.COLUMN_TEMP, -70.5 + i);
+            values.put(HourlyEntry.COLUMN_HUMIDITY, 1.2);
+            values.put(HourlyEntry.COLUMN_PRESSURE, 1.3);
+            values.put(HourlyEntry.COLUMN_WIND_SPEED, 5.5);
+            values.put(HourlyEntry.COLUMN_DEGREES, 1.1);
+            hourlyValues[i] = values;
+        }
+
+        int insertCount = mContext.getContentResolver().bulkInsert(
+                HourlyEntry.buildHourlyLocation(TestUtilities.TEST_LOCATION), hourlyValues);
+        assertEquals(pointCount, insertCount);
+
+        // Points 2, 3, 4 and 5; the end of the range is left out
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithRange(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE + 2 * stepMillis,
+                        TestUtilities.TEST_DATE + 6 * stepMillis),
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: wrong number of points in the range", 4, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 2; i < 6; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testHourlyRangeQuery.  Error validating point " + i,
+                    cursor, hourlyValues[i]);
+        }
+        cursor.close();
+    }
+
+    // Make sure the sync log keeps only its most recent entries.
+    public void testSyncLogRingBuffer() {
+        mContext.getContentResolver().delete(SyncLogEntry.CONTENT_URI, null, null);
+
+        final int overflow = 5;
+        for (int i = 0; i < SyncLogEntry.MAX_ENTRIES + overflow; i++) {
+            ContentValues values = new ContentValues();
+            values.put(SyncLogEntry.COLUMN_STARTED_AT, TestUtilities.TEST_DATE + i);
+            values.put(SyncLogEntry.COLUMN_TRIGGER, 0);
+            values.put(SyncLogEntry.COLUMN_OUTCOME, SyncLogEntry.OUTCOME_CHANGED);
+            values.put(SyncLogEntry.COLUMN_LOCATIONS, 1);
+            values.put(SyncLogEntry.COLUMN_DURATION, 100);
+            values.put(SyncLogEntry.COLUMN_DNS, 1);
+            values.put(SyncLogEntry.COLUMN_CONNECT, 2);
+            values.put(SyncLogEntry.COLUMN_TTFB, 3);
+            values.put(SyncLogEntry.COLUMN_DOWNLOAD, 4);
+            values.put(SyncLogEntry.COLUMN_PARSE, 5);
+            values.put(SyncLogEntry.COLUMN_COMMIT, 6);
+            values.put(SyncLogEntry.COLUMN_BYTES, 1024);
+            values.put(SyncLogEntry.COLUMN_ROWS, 14);
+            mContext.getContentResolver().insert(SyncLogEntry.CONTENT_URI, values);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                SyncLogEntry.CONTENT_URI,
+                new String[]{SyncLogEntry.COLUMN_STARTED_AT},
+                null,
+                null,
+                SyncLogEntry.COLUMN_STARTED_AT + " ASC"
+        );
+        assertEquals("Error: sync log outgrew its ring buffer",
+                SyncLogEntry.MAX_ENTRIES, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the oldest sync log entries were not the ones dropped",
+                TestUtilities.TEST_DATE + overflow, cursor.getLong(0));
+        cursor.close();
+    }
 }
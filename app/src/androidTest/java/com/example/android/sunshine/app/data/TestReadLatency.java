@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/*
+    Measures how long the forecast query takes while a sync-sized write is running, which is what
+    the loaders, widgets and the watch see during a sync.  Every read has to see one whole write,
+    and a typical read has to finish well inside a write rather than wait for it.  The exact
+    numbers depend on the device, so they are logged; run it before and after a database change
+    and compare.
+ */
+public class TestReadLatency extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestReadLatency.class.getSimpleName();
+
+    // Far more days than a forecast has, so each write holds its transaction for a while
+    private static final int DAYS_PER_WRITE = 500;
+    private static final int WRITES = 20;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testReadLatencyDuringWrites() throws Exception {
+        final long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        final Uri locationUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        mContext.getContentResolver().bulkInsert(locationUri, createDays(locationRowId, 0));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+            Cursor cursor = dbHelper.getReadableDatabase().rawQuery("PRAGMA journal_mode", null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Error: database is not in write-ahead logging mode",
+                    "wal", cursor.getString(0).toLowerCase());
+            cursor.close();
+            dbHelper.close();
+        }
+
+        final long[] writeMillis = new long[WRITES];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < WRITES; i++) {
+                    ContentValues[] days = createDays(locationRowId, i + 1);
+                    long start = SystemClock.elapsedRealtime();
+                    mContext.getContentResolver().bulkInsert(locationUri, days);
+                    writeMillis[i] = SystemClock.elapsedRealtime() - start;
+                }
+            }
+        });
+
+        // The location's uri is answered from the provider's query cache between writes, so the
+        // reads go through the plain weather uri, which always reaches the database
+        String locationSelection = WeatherEntry.COLUMN_LOC_KEY + " = ?";
+        String[] locationArgs = new String[]{Long.toString(locationRowId)};
+        long[] readNanos = new long[10000];
+        int reads = 0;
+        writer.start();
+        while (writer.isAlive() && reads < readNanos.length) {
+            long start = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                    locationSelection, locationArgs, WeatherEntry.COLUMN_DATE + " ASC");
+            // Walk to the end, so the whole window is read
+            assertTrue(cursor.moveToLast());
+            readNanos[reads++] = System.nanoTime() - start;
+            // Each write replaces every day in one transaction, so a read sees all of one round
+            assertEquals("Error: a read saw a partial write", DAYS_PER_WRITE, cursor.getCount());
+            int maxTempIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP);
+            double lastMaxTemp = cursor.getDouble(maxTempIndex);
+            cursor.moveToFirst();
+            assertEquals("Error: a read saw days from two writes",
+                    lastMaxTemp, cursor.getDouble(maxTempIndex));
+            cursor.close();
+        }
+        writer.join();
+
+        assertTrue("Error: no read finished while the writes were running", reads > 0);
+        Arrays.sort(readNanos, 0, reads);
+        Arrays.sort(writeMillis);
+        Log.d(LOG_TAG, reads + " reads during " + WRITES + " writes of " + DAYS_PER_WRITE
+                + " days (median write " + writeMillis[WRITES / 2] + "ms): read p50 "
+                + readNanos[reads / 2] / 1000 + "us, p99 " + readNanos[reads * 99 / 100] / 1000
+                + "us, max " + readNanos[reads - 1] / 1000 + "us");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // With write-ahead logging a reader doesn't queue behind the writer's transaction
+            assertTrue("Error: the median read took as long as a whole write",
+                    readNanos[reads / 2] / 1000000 < Math.max(1, writeMillis[WRITES / 2]));
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP}, locationSelection, locationArgs, null);
+        assertEquals(DAYS_PER_WRITE, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the last write didn't land", 75.0 + WRITES, cursor.getDouble(0));
+        cursor.close();
+    }
+
+    private static ContentValues[] createDays(long locationRowId, int round) {
+        long millisecondsInADay = 1000 * 60 * 60 * 24;
+        ContentValues[] days = new ContentValues[DAYS_PER_WRITE];
+        for (int i = 0; i < DAYS_PER_WRITE; i++) {
+            ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + i * millisecondsInADay);
+            // A different temperature each round, so every write really changes the rows
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75 + round);
+            days[i] = weatherValues;
+        }
+        return days;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.net.HttpURLConnection;
+
+/*
+    Runs whole syncs against recorded OpenWeatherMap responses, through
+    FixtureForecastTransport, and checks what they leave in the provider.
+ */
+public class TestFixtureSync extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "99705";
+    private static final long TEST_CITY_ID = 5861897;
+
+    private static final String DAILY_URL = "http://api.openweathermap.org/data/2.5/forecast/daily"
+            + "?q=" + TEST_LOCATION + "&mode=json&units=metric&cnt=14";
+    private static final String DAILY_BY_ID_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily"
+            + "?id=" + TEST_CITY_ID + "&mode=json&units=metric&cnt=14";
+    private static final String HOURLY_URL = "http://api.openweathermap.org/data/2.5/forecast"
+            + "?q=" + TEST_LOCATION + "&units=metric";
+    private static final String HOURLY_BY_ID_URL = "http://api.openweathermap.org/data/2.5/forecast"
+            + "?id=" + TEST_CITY_ID + "&units=metric";
+
+    private static final String SAVED_LOCATION = "saved";
+    private static final long SAVED_CITY_ID = 2643743;
+    private static final String SAVED_DAILY_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily"
+            + "?id=" + SAVED_CITY_ID + "&mode=json&units=metric&cnt=14";
+    private static final String GROUP_URL = "http://api.openweathermap.org/data/2.5/group"
+            + "?id=" + SAVED_CITY_ID + "&units=metric";
+
+    private static final String DAILY_ETAG = "\"daily-1\"";
+    private static final String HOURLY_ETAG = "\"hourly-1\"";
+
+    private static final String CITY_JSON = "\"city\":{\"id\":" + TEST_CITY_ID
+            + ",\"name\":\"North Pole\",\"coord\":{\"lon\":-147.353,\"lat\":64.7488}}";
+    private static final String SAVED_CITY_JSON = "\"city\":{\"id\":" + SAVED_CITY_ID
+            + ",\"name\":\"London\",\"coord\":{\"lon\":-0.1258,\"lat\":51.5085}}";
+    private static final int DAYS = 3;
+
+    private String mPreviousLocation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        // A backoff left over from a real sync would skip ours
+        SyncCircuitBreaker.recordSuccess(mContext);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String locationKey = mContext.getString(R.string.pref_location_key);
+        mPreviousLocation = prefs.getString(locationKey, null);
+        prefs.edit().putString(locationKey, TEST_LOCATION).commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SunshineSyncAdapter.setTransport(null);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String locationKey = mContext.getString(R.string.pref_location_key);
+        if (mPreviousLocation != null) {
+            prefs.edit().putString(locationKey, mPreviousLocation).commit();
+        } else {
+            prefs.edit().remove(locationKey).commit();
+        }
+        super.tearDown();
+    }
+
+    // Make sure a sync stores the recorded forecast, 3-hourly series and validators, and that
+    // the next sync revalidates them and writes nothing.
+    public void testSyncStoresFixtureForecast() {
+        FixtureForecastTransport transport = new FixtureForecastTransport();
+        String dailyBody = createDailyJson(CITY_JSON);
+        String hourlyBody = createHourlyJson();
+        transport.addFixture(DAILY_URL, HttpURLConnection.HTTP_OK, DAILY_ETAG, dailyBody);
+        transport.addFixture(DAILY_BY_ID_URL, HttpURLConnection.HTTP_OK, DAILY_ETAG, dailyBody);
+        transport.addFixture(HOURLY_URL, HttpURLConnection.HTTP_OK, HOURLY_ETAG, hourlyBody);
+        transport.addFixture(HOURLY_BY_ID_URL, HttpURLConnection.HTTP_OK, HOURLY_ETAG,
+                hourlyBody);
+        SunshineSyncAdapter.setTransport(transport);
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+
+        SyncResult syncResult = new SyncResult();
+        syncAdapter.onPerformSync(null, new Bundle(), WeatherContract.CONTENT_AUTHORITY, null,
+                syncResult);
+
+        assertEquals("Error: the sync should have asked for the forecast and the 3-hourly series",
+                2, transport.getRequestCount());
+        assertEquals(DAYS, syncResult.stats.numInserts);
+
+        Cursor locationCursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_CITY_NAME, LocationEntry.COLUMN_CITY_ID,
+                        LocationEntry.COLUMN_ETAG, LocationEntry.COLUMN_HOURLY_ETAG},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TEST_LOCATION},
+                null);
+        assertTrue("Error: the sync didn't add the location", locationCursor.moveToFirst());
+        assertEquals("North Pole", locationCursor.getString(0));
+        assertEquals(TEST_CITY_ID, locationCursor.getLong(1));
+        assertEquals(DAILY_ETAG, locationCursor.getString(2));
+        assertEquals(HOURLY_ETAG, locationCursor.getString(3));
+        locationCursor.close();
+
+        Cursor weatherCursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_WEATHER_ID, WeatherEntry.COLUMN_MAX_TEMP,
+                        WeatherEntry.COLUMN_MIN_TEMP},
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(DAYS, weatherCursor.getCount());
+        for (int i = 0; weatherCursor.moveToNext(); i++) {
+            assertEquals(800 + i, weatherCursor.getInt(0));
+            assertEquals(20.0 + i, weatherCursor.getDouble(1));
+            assertEquals(10.0 + i, weatherCursor.getDouble(2));
+        }
+        weatherCursor.close();
+
+        Cursor hourlyCursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation(TEST_LOCATION), null, null, null, null);
+        assertEquals(2, hourlyCursor.getCount());
+        hourlyCursor.close();
+
+        // The fixtures answer the stored ETags with a 304, so nothing is written again
+        syncResult = new SyncResult();
+        syncAdapter.onPerformSync(null, new Bundle(), WeatherContract.CONTENT_AUTHORITY, null,
+                syncResult);
+
+        assertEquals(4, transport.getRequestCount());
+        assertEquals(0, syncResult.stats.numInserts);
+        weatherCursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TEST_LOCATION), null, null, null, null);
+        assertEquals(DAYS, weatherCursor.getCount());
+        weatherCursor.close();
+    }
+
+    // Make sure a sync whose group request brings back exactly the conditions already stored
+    // for a saved location writes nothing, and counts as idle for the sync schedule.
+    public void testUnchangedGroupConditionsCountAsIdle() {
+        // A recent full forecast, so the saved location only gets a group request
+        insertSavedLocation(System.currentTimeMillis());
+
+        FixtureForecastTransport transport = new FixtureForecastTransport();
+        String dailyBody = createDailyJson(CITY_JSON);
+        String hourlyBody = createHourlyJson();
+        transport.addFixture(DAILY_URL, HttpURLConnection.HTTP_OK, DAILY_ETAG, dailyBody);
+        transport.addFixture(DAILY_BY_ID_URL, HttpURLConnection.HTTP_OK, DAILY_ETAG, dailyBody);
+        transport.addFixture(HOURLY_URL, HttpURLConnection.HTTP_OK, HOURLY_ETAG, hourlyBody);
+        transport.addFixture(HOURLY_BY_ID_URL, HttpURLConnection.HTTP_OK, HOURLY_ETAG,
+                hourlyBody);
+        // Within the stored range, so not even the temperatures widen
+        transport.addFixture(GROUP_URL, HttpURLConnection.HTTP_OK, null, "{\"cnt\":1,\"list\":["
+                + "{\"id\":" + SAVED_CITY_ID
+                + ",\"main\":{\"temp\":15.0,\"pressure\":1013.5,\"humidity\":70}"
+                + ",\"wind\":{\"speed\":3.5,\"deg\":180}"
+                + ",\"weather\":[{\"id\":800,\"main\":\"Clear\"}]}]}");
+        SunshineSyncAdapter.setTransport(transport);
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+
+        // The first sync stores the preferred location's forecast
+        syncAdapter.onPerformSync(null, new Bundle(), WeatherContract.CONTENT_AUTHORITY, null,
+                new SyncResult());
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        assertEquals(0, prefs.getInt(SyncSchedulePolicy.PREF_IDLE_SYNCS, -1));
+
+        // The second gets 304s for it, and the same conditions for the saved location
+        SyncResult syncResult = new SyncResult();
+        syncAdapter.onPerformSync(null, new Bundle(), WeatherContract.CONTENT_AUTHORITY, null,
+                syncResult);
+
+        assertEquals(0, syncResult.stats.numInserts);
+        assertEquals("Error: unchanged conditions were written", 0, syncResult.stats.numUpdates);
+        assertEquals(1, syncResult.stats.numSkippedEntries);
+        assertEquals("Error: a sync that changed nothing didn't count as idle",
+                1, prefs.getInt(SyncSchedulePolicy.PREF_IDLE_SYNCS, -1));
+    }
+
+    // Make sure a saved location whose last full forecast is too old gets a full one again,
+    // even though it still holds every day a group request would leave alone.
+    public void testOldFullForecastGetsFullFetch() {
+        long lastFullFetch = System.currentTimeMillis() - 24 * 60 * 60 * 1000L;
+        insertSavedLocation(lastFullFetch);
+
+        FixtureForecastTransport transport = new FixtureForecastTransport();
+        String dailyBody = createDailyJson(CITY_JSON);
+        transport.addFixture(DAILY_URL, HttpURLConnection.HTTP_OK, DAILY_ETAG, dailyBody);
+        transport.addFixture(HOURLY_URL, HttpURLConnection.HTTP_OK, HOURLY_ETAG,
+                createHourlyJson());
+        // No fixture for the group request, so asking for one fails the sync
+        transport.addFixture(SAVED_DAILY_URL, HttpURLConnection.HTTP_OK, null,
+                createDailyJson(SAVED_CITY_JSON));
+        SunshineSyncAdapter.setTransport(transport);
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+
+        SyncResult syncResult = new SyncResult();
+        syncAdapter.onPerformSync(null, new Bundle(), WeatherContract.CONTENT_AUTHORITY, null,
+                syncResult);
+
+        assertEquals(3, transport.getRequestCount());
+        assertEquals("Error: the saved location wasn't fetched in full",
+                0, syncResult.stats.numIoExceptions);
+        Cursor locationCursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_LAST_FULL_FETCH},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{SAVED_LOCATION},
+                null);
+        assertTrue(locationCursor.moveToFirst());
+        assertTrue("Error: the full fetch wasn't recorded",
+                locationCursor.getLong(0) > lastFullFetch);
+        locationCursor.close();
+    }
+
+    // Adds the saved location with a stored forecast for 14 days from today on
+    private void insertSavedLocation(long lastFullFetch) {
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, SAVED_LOCATION);
+        locationValues.put(LocationEntry.COLUMN_CITY_NAME, "London");
+        locationValues.put(LocationEntry.COLUMN_COORD_LAT, 51.5085);
+        locationValues.put(LocationEntry.COLUMN_COORD_LONG, -0.1258);
+        locationValues.put(LocationEntry.COLUMN_CITY_ID, SAVED_CITY_ID);
+        locationValues.put(LocationEntry.COLUMN_LAST_FULL_FETCH, lastFullFetch);
+        long savedRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, locationValues));
+        ContentValues[] days = new ContentValues[14];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = new ContentValues();
+            days[i].put(WeatherEntry.COLUMN_LOC_KEY, savedRowId);
+            days[i].put(WeatherEntry.COLUMN_DATE, SunshineSyncAdapter.getNormalizedDay(i));
+            days[i].put(WeatherEntry.COLUMN_WEATHER_ID, 800);
+            days[i].put(WeatherEntry.COLUMN_SHORT_DESC, "Clear");
+            days[i].put(WeatherEntry.COLUMN_MIN_TEMP, 10.0);
+            days[i].put(WeatherEntry.COLUMN_MAX_TEMP, 20.0);
+            days[i].put(WeatherEntry.COLUMN_HUMIDITY, 70);
+            days[i].put(WeatherEntry.COLUMN_PRESSURE, 1013.5);
+            days[i].put(WeatherEntry.COLUMN_WIND_SPEED, 3.5);
+            days[i].put(WeatherEntry.COLUMN_DEGREES, 180.0);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+    }
+
+    private static String createDailyJson(String cityJson) {
+        StringBuilder json = new StringBuilder("{\"cod\":\"200\",").append(cityJson)
+                .append(",\"cnt\":").append(DAYS).append(",\"list\":[");
+        for (int i = 0; i < DAYS; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"temp\":{\"min\":").append(10.0 + i)
+                    .append(",\"max\":").append(20.0 + i)
+                    .append("},\"pressure\":1013.5,\"humidity\":70,\"weather\":[{\"id\":")
+                    .append(800 + i)
+                    .append(",\"main\":\"Clear\"}],\"speed\":3.5,\"deg\":180}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String createHourlyJson() {
+        // The series is swept by time, so its steps must lie ahead of now
+        long firstStep = System.currentTimeMillis() / 1000 + 3 * 60 * 60;
+        StringBuilder json = new StringBuilder("{\"cod\":\"200\",").append(CITY_JSON)
+                .append(",\"list\":[");
+        for (int i = 0; i < 2; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"dt\":").append(firstStep + i * 3 * 60 * 60)
+                    .append(",\"main\":{\"temp\":15.0,\"pressure\":1013.5,\"humidity\":70}")
+                    .append(",\"weather\":[{\"id\":800,\"main\":\"Clear\"}]")
+                    .append(",\"wind\":{\"speed\":3.5,\"deg\":180}}");
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -431,7 +431,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (key.equals(getString(R.string.pref_location_status_key))) {
+        if (Utility.isPreferredLocationStatusKey(getActivity(), key)) {
             updateEmptyView();
         }
     }
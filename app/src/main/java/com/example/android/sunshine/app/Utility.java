@@ -553,26 +553,58 @@ public class Utility {
                 activeNetwork.isConnectedOrConnecting();
     }
 
+    /**
+     * Each location keeps its own status, since a sync may refresh every saved location.
+     *
+     * @param c Context used to get the key prefix
+     * @param locationSetting The location string the status belongs to
+     * @return the SharedPreferences key holding the status of that location
+     */
+    static public String getLocationStatusKey(Context c, String locationSetting) {
+        return c.getString(R.string.pref_location_status_key) + "/" + locationSetting;
+    }
+
+    /**
+     * @param c Context used to get the SharedPreferences
+     * @param key a SharedPreferences key
+     * @return true if the key holds the status of the preferred location
+     */
+    static public boolean isPreferredLocationStatusKey(Context c, String key) {
+        return getLocationStatusKey(c, getPreferredLocation(c)).equals(key);
+    }
+
     /**
      *
      * @param c Context used to get the SharedPreferences
+     * @return the location status integer type of the preferred location
+     */
+    static public @SunshineSyncAdapter.LocationStatus
+    int getLocationStatus(Context c){
+        return getLocationStatus(c, getPreferredLocation(c));
+    }
+
+    /**
+     *
+     * @param c Context used to get the SharedPreferences
+     * @param locationSetting The location string to get the status of
      * @return the location status integer type
      */
     @SuppressWarnings("ResourceType")
     static public @SunshineSyncAdapter.LocationStatus
-    int getLocationStatus(Context c){
+    int getLocationStatus(Context c, String locationSetting){
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
-        return sp.getInt(c.getString(R.string.pref_location_status_key), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+        return sp.getInt(getLocationStatusKey(c, locationSetting), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
     }
 
     /**
-     * Resets the location status.  (Sets it to SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN)
+     * Resets the status of the preferred location.  (Sets it to
+     * SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN)
      * @param c Context used to get the SharedPreferences
      */
     static public void resetLocationStatus(Context c){
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
         SharedPreferences.Editor spe = sp.edit();
-        spe.putInt(c.getString(R.string.pref_location_status_key), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+        spe.putInt(getLocationStatusKey(c, getPreferredLocation(c)), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
         spe.apply();
     }
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Inserts rows through compiled statements, one per table and set of columns, so the SQL of a
+ * batch is compiled once rather than once per row as {@link SQLiteDatabase#insert} does.
+ *
+ * The statements belong to the connection of the transaction they were compiled in; create one
+ * of these inside the transaction and close it before the transaction ends.  Not thread safe.
+ */
+class CompiledInserts {
+    private static final String LOG_TAG = CompiledInserts.class.getSimpleName();
+
+    private final SQLiteDatabase mDb;
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>();
+
+    CompiledInserts(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * @return the row ID of the new row, or -1 if it could not be inserted
+     */
+    long insert(String table, ContentValues values) {
+        if (values.size() == 0) {
+            return mDb.insert(table, null, values);
+        }
+        String[] columns = new String[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> column : values.valueSet()) {
+            columns[i++] = column.getKey();
+        }
+        // Rows carrying the same columns share a statement whatever order they were put in
+        Arrays.sort(columns);
+
+        StringBuilder key = new StringBuilder(table);
+        for (String column : columns) {
+            key.append(',').append(column);
+        }
+        SQLiteStatement statement = mStatements.get(key.toString());
+        if (statement == null) {
+            statement = mDb.compileStatement(buildInsert(table, columns));
+            mStatements.put(key.toString(), statement);
+        }
+
+        statement.clearBindings();
+        for (i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+        }
+        try {
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            // Same outcome as SQLiteDatabase.insert
+            Log.e(LOG_TAG, "Error inserting " + values, e);
+            return -1;
+        }
+    }
+
+    void close() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+
+    private static String buildInsert(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+                placeholders.append(", ");
+            }
+            sql.append(columns[i]);
+            placeholders.append('?');
+        }
+        return sql.append(") VALUES (").append(placeholders).append(')').toString();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the row ID of each location setting, for as long as the process lives.
+ *
+ * The location table is tiny and changes rarely, yet every sync of every location used to look
+ * its row up by setting.  The provider fills this cache as it resolves and inserts locations,
+ * and empties it whenever a write could have moved a setting to another row, so a hit is always
+ * the row the database would have answered with.
+ */
+public final class LocationIdCache {
+
+    public static final long NO_ID = -1;
+
+    private static final HashMap<String, Long> sIds = new HashMap<String, Long>();
+
+    private LocationIdCache() {
+    }
+
+    /**
+     * @param locationSetting the location setting to look up
+     * @return the row ID of the location, or {@link #NO_ID} if it is not cached
+     */
+    public static synchronized long get(String locationSetting) {
+        Long locationId = sIds.get(locationSetting);
+        return locationId != null ? locationId : NO_ID;
+    }
+
+    /**
+     * @param locationId the row ID to look up
+     * @return the setting of the location in that row, or null if it is not cached
+     */
+    static synchronized String getSetting(long locationId) {
+        // Only a handful of locations are ever followed, so a walk beats a second map
+        for (Map.Entry<String, Long> entry : sIds.entrySet()) {
+            if (entry.getValue() == locationId) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    static synchronized void put(String locationSetting, long locationId) {
+        sIds.put(locationSetting, locationId);
+    }
+
+    /**
+     * Forgets every location, after a write that may have removed rows or changed their
+     * settings.
+     */
+    static synchronized void clear() {
+        sIds.clear();
+    }
+}
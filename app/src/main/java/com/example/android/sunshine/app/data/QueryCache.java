@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the results of recent location weather queries in memory, so a query asked again before
+ * the weather it read changes is answered without touching SQLite.
+ *
+ * Each result is stored as a snapshot of its rows, and every hit gets its own MatrixCursor over
+ * the snapshot.  An entry remembers the location and the dates it covers, so a change announced
+ * on a weather/location/date uri only drops the entries that could have seen that day.
+ *
+ * A query that ran while a write was committing may have read the old rows; its result is only
+ * stored if nothing has been invalidated since the query started.
+ */
+class QueryCache {
+
+    // Rows kept in all, counting each entry as one more row
+    static final int MAX_ROWS = 512;
+
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_ROWS) {
+        @Override
+        protected int sizeOf(String key, Entry entry) {
+            return entry.rows.length + 1;
+        }
+    };
+
+    private long mGeneration;
+    private int mHits;
+    private int mMisses;
+
+    private static final class Entry {
+        final String locationSetting;
+        // The date of a single day, or the first date of a range (0 for every date)
+        final long date;
+        final boolean singleDay;
+        final String[] columns;
+        final Object[][] rows;
+
+        Entry(String locationSetting, long date, boolean singleDay, String[] columns,
+              Object[][] rows) {
+            this.locationSetting = locationSetting;
+            this.date = date;
+            this.singleDay = singleDay;
+            this.columns = columns;
+            this.rows = rows;
+        }
+
+        boolean covers(String changedLocationSetting, long changedDate) {
+            return locationSetting.equals(changedLocationSetting)
+                    && (singleDay ? date == changedDate : changedDate >= date);
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(columns, rows.length);
+            for (Object[] row : rows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    /**
+     * @return the key of a location's weather query; the selection takes no part in these
+     * queries, so it is left out
+     */
+    static String buildKey(String locationSetting, long date, boolean singleDay,
+                           String[] projection, String sortOrder) {
+        StringBuilder key = new StringBuilder(singleDay ? "day\n" : "from\n")
+                .append(locationSetting).append('\n')
+                .append(date).append('\n');
+        if (projection == null) {
+            key.append('*');
+        } else {
+            for (String column : projection) {
+                key.append(column).append(',');
+            }
+        }
+        return key.append('\n').append(sortOrder).toString();
+    }
+
+    /**
+     * @return a fresh cursor over the cached result, or null on a miss
+     */
+    synchronized Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.newCursor();
+    }
+
+    /**
+     * @return the token to hand {@link #put} for a query about to run
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Reads the result of a query into a snapshot, and caches it unless the weather has changed
+     * since the query started.  The query's cursor is left to the caller to close.
+     *
+     * @param generation what {@link #getGeneration} returned before the query ran
+     * @return a cursor over the snapshot, to return in place of the query's cursor
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    Cursor put(String key, long generation, String locationSetting, long date, boolean singleDay,
+               Cursor cursor) {
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            Object[] row = new Object[columns.length];
+            for (int column = 0; column < columns.length; column++) {
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[column] = cursor.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[column] = cursor.getDouble(column);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[column] = cursor.getString(column);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[column] = cursor.getBlob(column);
+                        break;
+                    default:
+                        row[column] = null;
+                }
+            }
+            rows[i] = row;
+        }
+        Entry entry = new Entry(locationSetting, date, singleDay, columns, rows);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mEntries.put(key, entry);
+            }
+        }
+        return entry.newCursor();
+    }
+
+    /**
+     * Drops every entry a change announced on the given uri could have touched.  Changes to the
+     * location table may show in any joined result, so they drop everything.
+     */
+    synchronized void invalidate(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (!segments.isEmpty() && !WeatherContract.PATH_WEATHER.equals(segments.get(0))
+                && !WeatherContract.PATH_LOCATION.equals(segments.get(0))) {
+            // Hourly points and the sync log are never cached
+            return;
+        }
+        mGeneration++;
+        if (segments.size() < 2 || WeatherContract.PATH_LOCATION.equals(segments.get(0))) {
+            mEntries.evictAll();
+            return;
+        }
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        boolean singleDay = segments.size() > 2;
+        long date = singleDay ? WeatherContract.WeatherEntry.getDateFromUri(uri) : 0;
+        for (Map.Entry<String, Entry> cached : mEntries.snapshot().entrySet()) {
+            Entry entry = cached.getValue();
+            if (singleDay ? entry.covers(locationSetting, date)
+                    : entry.locationSetting.equals(locationSetting)) {
+                mEntries.remove(cached.getKey());
+            }
+        }
+    }
+
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Days of forecast for one location, held column by column in primitive arrays.
+ *
+ * A sync writes a couple of weeks of days per location.  As ContentValues every number in them
+ * is boxed and every row is a hash map; here a whole forecast is a handful of arrays, which the
+ * provider binds straight into a compiled insert through {@link WeatherEntry#METHOD_INSERT_DAYS}.
+ */
+public final class WeatherBatch {
+
+    // Bundle keys that are not column names
+    private static final String EXTRA_SIZE = "size";
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int mSize;
+    private long[] mDates;
+    private int[] mWeatherIds;
+    private String[] mDescriptions;
+    private double[] mMinTemps;
+    private double[] mMaxTemps;
+    private double[] mHumidities;
+    private double[] mPressures;
+    private double[] mWindSpeeds;
+    private double[] mDegrees;
+
+    public WeatherBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public WeatherBatch(int capacity) {
+        mDates = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mDescriptions = new String[capacity];
+        mMinTemps = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mHumidities = new double[capacity];
+        mPressures = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    /**
+     * Appends a day.  The date does not need to be normalized; the provider does that when the
+     * day is written.
+     */
+    public void add(long date, int weatherId, String description, double minTemp, double maxTemp,
+                    double humidity, double pressure, double windSpeed, double degrees) {
+        if (mSize == mDates.length) {
+            grow();
+        }
+        mDates[mSize] = date;
+        mWeatherIds[mSize] = weatherId;
+        mDescriptions[mSize] = description;
+        mMinTemps[mSize] = minTemp;
+        mMaxTemps[mSize] = maxTemp;
+        mHumidities[mSize] = humidity;
+        mPressures[mSize] = pressure;
+        mWindSpeeds[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getDate(int i) {
+        return mDates[i];
+    }
+
+    public int getWeatherId(int i) {
+        return mWeatherIds[i];
+    }
+
+    public String getDescription(int i) {
+        return mDescriptions[i];
+    }
+
+    public double getMinTemp(int i) {
+        return mMinTemps[i];
+    }
+
+    public double getMaxTemp(int i) {
+        return mMaxTemps[i];
+    }
+
+    public double getHumidity(int i) {
+        return mHumidities[i];
+    }
+
+    public double getPressure(int i) {
+        return mPressures[i];
+    }
+
+    public double getWindSpeed(int i) {
+        return mWindSpeeds[i];
+    }
+
+    public double getDegrees(int i) {
+        return mDegrees[i];
+    }
+
+    /**
+     * Drops every day whose flag is false, keeping the others in order.
+     *
+     * @param keep one flag per day
+     * @return the number of days left
+     */
+    public int retain(boolean[] keep) {
+        int kept = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (!keep[i]) {
+                continue;
+            }
+            if (kept != i) {
+                mDates[kept] = mDates[i];
+                mWeatherIds[kept] = mWeatherIds[i];
+                mDescriptions[kept] = mDescriptions[i];
+                mMinTemps[kept] = mMinTemps[i];
+                mMaxTemps[kept] = mMaxTemps[i];
+                mHumidities[kept] = mHumidities[i];
+                mPressures[kept] = mPressures[i];
+                mWindSpeeds[kept] = mWindSpeeds[i];
+                mDegrees[kept] = mDegrees[i];
+            }
+            kept++;
+        }
+        for (int i = kept; i < mSize; i++) {
+            mDescriptions[i] = null;
+        }
+        mSize = kept;
+        return kept;
+    }
+
+    /**
+     * Packs the days into the extras of a {@link WeatherEntry#METHOD_INSERT_DAYS} call.  The
+     * arrays are handed over as they are, so the batch must not be changed until the call has
+     * returned.
+     *
+     * @param locationId the row ID of the location the days belong to
+     */
+    public Bundle toBundle(long locationId) {
+        Bundle extras = new Bundle();
+        extras.putInt(EXTRA_SIZE, mSize);
+        extras.putLong(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        extras.putLongArray(WeatherEntry.COLUMN_DATE, mDates);
+        extras.putIntArray(WeatherEntry.COLUMN_WEATHER_ID, mWeatherIds);
+        extras.putStringArray(WeatherEntry.COLUMN_SHORT_DESC, mDescriptions);
+        extras.putDoubleArray(WeatherEntry.COLUMN_MIN_TEMP, mMinTemps);
+        extras.putDoubleArray(WeatherEntry.COLUMN_MAX_TEMP, mMaxTemps);
+        extras.putDoubleArray(WeatherEntry.COLUMN_HUMIDITY, mHumidities);
+        extras.putDoubleArray(WeatherEntry.COLUMN_PRESSURE, mPressures);
+        extras.putDoubleArray(WeatherEntry.COLUMN_WIND_SPEED, mWindSpeeds);
+        extras.putDoubleArray(WeatherEntry.COLUMN_DEGREES, mDegrees);
+        return extras;
+    }
+
+    /**
+     * Reads back the days packed by {@link #toBundle(long)}.
+     */
+    static WeatherBatch fromBundle(Bundle extras) {
+        WeatherBatch batch = new WeatherBatch(0);
+        batch.mDates = extras.getLongArray(WeatherEntry.COLUMN_DATE);
+        batch.mWeatherIds = extras.getIntArray(WeatherEntry.COLUMN_WEATHER_ID);
+        batch.mDescriptions = extras.getStringArray(WeatherEntry.COLUMN_SHORT_DESC);
+        batch.mMinTemps = extras.getDoubleArray(WeatherEntry.COLUMN_MIN_TEMP);
+        batch.mMaxTemps = extras.getDoubleArray(WeatherEntry.COLUMN_MAX_TEMP);
+        batch.mHumidities = extras.getDoubleArray(WeatherEntry.COLUMN_HUMIDITY);
+        batch.mPressures = extras.getDoubleArray(WeatherEntry.COLUMN_PRESSURE);
+        batch.mWindSpeeds = extras.getDoubleArray(WeatherEntry.COLUMN_WIND_SPEED);
+        batch.mDegrees = extras.getDoubleArray(WeatherEntry.COLUMN_DEGREES);
+        batch.mSize = extras.getInt(EXTRA_SIZE);
+        return batch;
+    }
+
+    /**
+     * Turns the days into rows for {@link android.content.ContentResolver#bulkInsert}, for the
+     * platforms that cannot call into the provider.
+     *
+     * @param locationId the row ID of the location the days belong to
+     */
+    public ContentValues[] toContentValues(long locationId) {
+        ContentValues[] rows = new ContentValues[mSize];
+        for (int i = 0; i < mSize; i++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, mDates[i]);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, mWeatherIds[i]);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, mDescriptions[i]);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, mMinTemps[i]);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, mMaxTemps[i]);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, mHumidities[i]);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, mPressures[i]);
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, mWindSpeeds[i]);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, mDegrees[i]);
+            rows[i] = weatherValues;
+        }
+        return rows;
+    }
+
+    private void grow() {
+        int capacity = Math.max(DEFAULT_CAPACITY, mDates.length * 2);
+        mDates = copyOf(mDates, capacity);
+        mWeatherIds = copyOf(mWeatherIds, capacity);
+        String[] descriptions = new String[capacity];
+        System.arraycopy(mDescriptions, 0, descriptions, 0, mSize);
+        mDescriptions = descriptions;
+        mMinTemps = copyOf(mMinTemps, capacity);
+        mMaxTemps = copyOf(mMaxTemps, capacity);
+        mHumidities = copyOf(mHumidities, capacity);
+        mPressures = copyOf(mPressures, capacity);
+        mWindSpeeds = copyOf(mWindSpeeds, capacity);
+        mDegrees = copyOf(mDegrees, capacity);
+    }
+
+    private long[] copyOf(long[] column, int capacity) {
+        long[] grown = new long[capacity];
+        System.arraycopy(column, 0, grown, 0, mSize);
+        return grown;
+    }
+
+    private int[] copyOf(int[] column, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(column, 0, grown, 0, mSize);
+        return grown;
+    }
+
+    private double[] copyOf(double[] column, int capacity) {
+        double[] grown = new double[capacity];
+        System.arraycopy(column, 0, grown, 0, mSize);
+        return grown;
+    }
+}
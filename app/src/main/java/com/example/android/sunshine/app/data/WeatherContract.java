@@ -43,12 +43,31 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_HOURLY = "hourly";
+    public static final String PATH_SYNC_LOG = "sync_log";
+
+    // Provider method that applies a batch like applyBatch does, in one transaction, but whose
+    // operations can also write the WeatherBatch bundles that come with them (see
+    // WeatherEntry.buildWeatherLocationDays).  The extras hold the operations under
+    // KEY_OPERATIONS next to those bundles; the result is null if the batch was rolled back.
+    // Needs API 11.
+    public static final String METHOD_APPLY_BATCH = "apply_batch";
+    public static final String KEY_OPERATIONS = "operations";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
+        return normalizeDate(startDate, new Time());
+    }
+
+    /**
+     * Same as {@link #normalizeDate(long)}, but works in the given Time so that a caller
+     * normalizing many dates can reuse one.
+     *
+     * @param time scratch Time in the default timezone; its fields are overwritten
+     */
+    public static long normalizeDate(long startDate, Time time) {
         // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
         time.set(startDate);
         int julianDay = Time.getJulianDay(startDate, time.gmtoff);
         return time.setJulianDay(julianDay);
@@ -81,9 +100,54 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // OpenWeatherMap's own id for the city, once a forecast has told us what it is.  Locations
+        // with an id can be refreshed together through the group endpoint.
+        public static final String COLUMN_CITY_ID = "city_id";
+
+        // HTTP validators (ETag and Last-Modified) from the last forecast response we stored
+        // for this location.  They are sent back on the next sync so an unchanged forecast
+        // comes back as a 304 with no body.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+        // Digest of the raw body of the last forecast we stored for this location.  The server
+        // often sends identical bodies without any validators, and this lets us spot them.
+        public static final String COLUMN_PAYLOAD_DIGEST = "payload_digest";
+
+        // The same three, for the last 3-hourly forecast we stored for this location.
+        public static final String COLUMN_HOURLY_ETAG = "hourly_etag";
+        public static final String COLUMN_HOURLY_LAST_MODIFIED = "hourly_last_modified";
+        public static final String COLUMN_HOURLY_PAYLOAD_DIGEST = "hourly_payload_digest";
+
+        // When a full forecast for this location was last fetched or revalidated, in
+        // milliseconds since the epoch.  Group requests only refresh today, so this tells the
+        // sync when the later days are due again.
+        public static final String COLUMN_LAST_FULL_FETCH = "last_full_fetch";
+
+        // Provider method that returns the row ID of a location, adding the location first if
+        // it has no row yet.  The arg is the location setting, the extras may carry the city
+        // name and coordinates to store with a new row, and the result holds the row ID under
+        // KEY_LOCATION_ID.  Needs API 11.
+        public static final String METHOD_UPSERT_LOCATION = "upsert_location";
+        public static final String KEY_LOCATION_ID = "location_id";
+
+        // Query parameter that turns an insert on CONTENT_URI into an upsert: the returned uri
+        // names the existing row of the location setting, if it has one, and nothing is written.
+        // This lets a batch resolve a location and back-reference its row ID in the same
+        // transaction.
+        public static final String QUERY_UPSERT = "upsert";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        public static Uri buildLocationUpsertUri() {
+            return CONTENT_URI.buildUpon().appendQueryParameter(QUERY_UPSERT, "true").build();
+        }
+
+        public static boolean isUpsertUri(Uri uri) {
+            return "true".equals(uri.getQueryParameter(QUERY_UPSERT));
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -126,6 +190,25 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Provider method that writes a WeatherBatch in one go.  The arg is the location setting
+        // the days belong to, the extras come from WeatherBatch.toBundle, and the result holds
+        // the number of days written under KEY_INSERTED_COUNT.  Needs API 11; older platforms
+        // fall back to bulkInsert.
+        public static final String METHOD_INSERT_DAYS = "insert_days";
+        public static final String KEY_INSERTED_COUNT = "inserted_count";
+
+        // Query parameter that makes an insert on a location's uri, within METHOD_APPLY_BATCH,
+        // write the WeatherBatch the call's extras carry under getDaysKey for the location.
+        // The insert's values only hold COLUMN_LOC_KEY, so a batch can back-reference it.
+        public static final String QUERY_DAYS = "days";
+
+        // Provider method that reports how the in-memory cache of location weather queries is
+        // doing: the result holds the hits under KEY_CACHE_HITS and the misses under
+        // KEY_CACHE_MISSES, counted since the provider started.  Needs API 11.
+        public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
+        public static final String KEY_CACHE_HITS = "cache_hits";
+        public static final String KEY_CACHE_MISSES = "cache_misses";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -144,6 +227,11 @@ public class WeatherContract {
                     .appendQueryParameter(COLUMN_DATE, Long.toString(normalizedDate)).build();
         }
 
+        public static Uri buildWeatherLocationDays(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(QUERY_DAYS, "true").build();
+        }
+
         public static Uri buildWeatherLocationWithDate(String locationSetting, long date) {
             return CONTENT_URI.buildUpon().appendPath(locationSetting)
                     .appendPath(Long.toString(normalizeDate(date))).build();
@@ -157,6 +245,14 @@ public class WeatherContract {
             return Long.parseLong(uri.getPathSegments().get(2));
         }
 
+        public static boolean isDaysUri(Uri uri) {
+            return "true".equals(uri.getQueryParameter(QUERY_DAYS));
+        }
+
+        public static String getDaysKey(String locationSetting) {
+            return QUERY_DAYS + "/" + locationSetting;
+        }
+
         public static long getStartDateFromUri(Uri uri) {
             String dateString = uri.getQueryParameter(COLUMN_DATE);
             if (null != dateString && dateString.length() > 0)
@@ -165,4 +261,119 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the hourly table */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the forecast step, stored as long in milliseconds since the epoch.  Unlike
+        // the weather table's date this is not normalized; OWM steps every 3 hours.
+        public static final String COLUMN_TIME = "time";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Short description of the weather, as provided by API.
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+        // Temperature at that time (stored as a float)
+        public static final String COLUMN_TEMP = "temp";
+        // Humidity is stored as a float representing percentage
+        public static final String COLUMN_HUMIDITY = "humidity";
+        // Pressure is stored as a float
+        public static final String COLUMN_PRESSURE = "pressure";
+        // Windspeed is stored as a float
+        public static final String COLUMN_WIND_SPEED = "wind";
+        // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
+        public static final String COLUMN_DEGREES = "degrees";
+
+        public static Uri buildHourlyUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * @param startTime first time to include, in milliseconds since the epoch
+         * @param endTime first time to leave out, in milliseconds since the epoch
+         */
+        public static Uri buildHourlyLocationWithRange(String locationSetting,
+                                                       long startTime, long endTime) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(Long.toString(startTime))
+                    .appendPath(Long.toString(endTime)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartTimeFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+
+        public static long getEndTimeFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(3));
+        }
+    }
+
+    /* Inner class that defines the table contents of the sync_log table */
+    public static final class SyncLogEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_LOG).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_LOG;
+
+        public static final String TABLE_NAME = "sync_log";
+
+        // Only this many of the most recent syncs are kept
+        public static final int MAX_ENTRIES = 200;
+
+        // When the sync started, in milliseconds since the epoch
+        public static final String COLUMN_STARTED_AT = "started_at";
+        // What asked for the sync: the SyncRequestCoordinator reason bits of an immediate sync,
+        // or 0 for a periodic one
+        public static final String COLUMN_TRIGGER = "trigger";
+        // One of the OUTCOME_ values below
+        public static final String COLUMN_OUTCOME = "outcome";
+        // Locations the sync set out to refresh
+        public static final String COLUMN_LOCATIONS = "locations";
+
+        // Wall time of the whole sync, in milliseconds
+        public static final String COLUMN_DURATION = "duration_ms";
+        // Milliseconds spent in each phase, summed over every request of the sync.  Requests run
+        // in parallel, so these can add up to more than the duration.
+        public static final String COLUMN_DNS = "dns_ms";
+        public static final String COLUMN_CONNECT = "connect_ms";
+        public static final String COLUMN_TTFB = "ttfb_ms";
+        public static final String COLUMN_DOWNLOAD = "download_ms";
+        public static final String COLUMN_PARSE = "parse_ms";
+        public static final String COLUMN_COMMIT = "commit_ms";
+
+        // Response body bytes read, after decompression
+        public static final String COLUMN_BYTES = "bytes";
+        // Rows inserted, updated or deleted
+        public static final String COLUMN_ROWS = "rows";
+
+        // Something was written
+        public static final int OUTCOME_CHANGED = 0;
+        // The server was reached but nothing had changed
+        public static final int OUTCOME_UNCHANGED = 1;
+        // No location could be refreshed
+        public static final int OUTCOME_FAILED = 2;
+        // The sync was skipped while backing off from a failing server
+        public static final int OUTCOME_BACKED_OFF = 3;
+    }
 }
@@ -15,27 +15,176 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Manages a local database for weather data.
+ *
+ * Where the platform supports it (API 11 and up) the database runs in write-ahead logging mode,
+ * so the loaders, widgets, Muzei and the watch keep reading the last committed forecast while a
+ * sync writes the next one.  Commits only append to the log; the log is copied back into the
+ * database by a passive checkpoint on a background thread shortly after a write, which never
+ * waits for readers and never holds up the writer.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 10;
 
     static final String DATABASE_NAME = "weather.db";
 
+    static final String HOURLY_TIME_INDEX = "hourly_time_idx";
+
+    // A forecast row is small, so 4K pages keep a location's days on a page or two
+    static final int PAGE_SIZE = 4096;
+    // About 1MB, enough to keep every forecast and hourly series in memory
+    static final int CACHE_SIZE_PAGES = 256;
+    // Past this many pages the commit that crosses it checkpoints by itself.  Only a backstop,
+    // in case the background checkpoints fall behind.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 2000;
+    // Lets the reads a write set off finish before the log is checkpointed
+    static final long CHECKPOINT_DELAY_MILLIS = 2000;
+
+    private final ScheduledExecutorService mCheckpointer =
+            Executors.newSingleThreadScheduledExecutor();
+    // The checkpoint waiting to run, or null
+    private ScheduledFuture<?> mPendingCheckpoint;
+    // The database as last opened, or null once the helper is closed.  A checkpoint only ever
+    // runs on this one, so it can't reopen, or recreate, a database closed meanwhile.
+    private SQLiteDatabase mDatabase;
+    private volatile boolean mWriteAheadLogging;
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void onConfigure(SQLiteDatabase db) {
+        // Runs before onCreate, while a new database is still empty and its page size can be set
+        configure(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        synchronized (this) {
+            mDatabase = db;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // No onConfigure here, so a new database keeps SQLite's default page size
+            configure(db);
+        }
+    }
+
+    /**
+     * Helper method to apply the page size, cache size, journal mode and synchronous level to
+     * a freshly opened connection.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void configure(SQLiteDatabase db) {
+        db.setPageSize(PAGE_SIZE);
+        db.execSQL("PRAGMA cache_size = " + CACHE_SIZE_PAGES);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB
+                || !db.enableWriteAheadLogging()) {
+            return;
+        }
+        mWriteAheadLogging = true;
+        // The database only caches online data: a power cut may cost the last commits, which
+        // the next sync fetches again, but can't corrupt the file
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        // Both pragmas answer with a row, which execSQL refuses
+        Cursor cursor = db.rawQuery(
+                "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+        cursor.close();
+    }
+
+    /**
+     * Asks for a checkpoint of the write-ahead log in a little while.  Requests made while one is
+     * already waiting are folded into it.  Does nothing without write-ahead logging, where every
+     * commit goes straight to the database.
+     */
+    void requestCheckpoint() {
+        if (!mWriteAheadLogging) {
+            return;
+        }
+        synchronized (this) {
+            if (mPendingCheckpoint != null || mDatabase == null) {
+                return;
+            }
+            mPendingCheckpoint = mCheckpointer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (WeatherDbHelper.this) {
+                        mPendingCheckpoint = null;
+                    }
+                    checkpoint();
+                }
+            }, CHECKPOINT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Copies as much of the write-ahead log back into the database as can be done without
+     * waiting on anyone.  Pages a reader still needs stay in the log for the next checkpoint.
+     */
+    void checkpoint() {
+        SQLiteDatabase db;
+        synchronized (this) {
+            db = mDatabase;
+        }
+        if (db == null || !db.isOpen()) {
+            // Closing the last connection checkpoints the log by itself
+            return;
+        }
+        try {
+            Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+            try {
+                if (cursor.moveToFirst()) {
+                    // busy, pages in the log, pages checkpointed
+                    Log.d(LOG_TAG, "Checkpointed " + cursor.getInt(2) + " of "
+                            + cursor.getInt(1) + " log pages");
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException | IllegalStateException e) {
+            // The database was closed while the checkpoint ran, and closing checkpoints it
+            Log.d(LOG_TAG, "Checkpoint skipped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops the checkpoint waiting to run before closing the database, so it can't outlive it.
+     */
+    @Override
+    public synchronized void close() {
+        if (mPendingCheckpoint != null) {
+            mPendingCheckpoint.cancel(false);
+            mPendingCheckpoint = null;
+        }
+        mDatabase = null;
+        super.close();
+    }
+
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
         // Create a table to hold locations.  A location consists of the string supplied in the
@@ -45,7 +194,15 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_CITY_ID + " INTEGER, " +
+                LocationEntry.COLUMN_ETAG + " TEXT, " +
+                LocationEntry.COLUMN_LAST_MODIFIED + " TEXT, " +
+                LocationEntry.COLUMN_PAYLOAD_DIGEST + " TEXT, " +
+                LocationEntry.COLUMN_HOURLY_ETAG + " TEXT, " +
+                LocationEntry.COLUMN_HOURLY_LAST_MODIFIED + " TEXT, " +
+                LocationEntry.COLUMN_HOURLY_PAYLOAD_DIGEST + " TEXT, " +
+                LocationEntry.COLUMN_LAST_FULL_FETCH + " INTEGER " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -75,12 +232,64 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
 
                 // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+                // per location, it's created a UNIQUE constraint with REPLACE strategy.
+                // Location first, so the constraint doubles as the index a location's days are
+                // scanned through.
+                " UNIQUE (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        // One row per location per 3-hour forecast step.  The unique constraint doubles as the
+        // (location, time) index range queries run on.
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TIME + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+
+                HourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_TIME + ") ON CONFLICT REPLACE);";
+
+        // Lets the retention sweep find old points without scanning the table
+        final String SQL_CREATE_HOURLY_TIME_INDEX = "CREATE INDEX " + HOURLY_TIME_INDEX +
+                " ON " + HourlyEntry.TABLE_NAME + " (" + HourlyEntry.COLUMN_TIME + ");";
+
+        // One row per sync.  AUTOINCREMENT keeps ids growing, so the ring buffer can drop the
+        // oldest entries by id.
+        final String SQL_CREATE_SYNC_LOG_TABLE = "CREATE TABLE " + SyncLogEntry.TABLE_NAME + " (" +
+                SyncLogEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                SyncLogEntry.COLUMN_STARTED_AT + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_TRIGGER + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_OUTCOME + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_LOCATIONS + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_DNS + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_CONNECT + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_TTFB + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_DOWNLOAD + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_PARSE + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_COMMIT + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_BYTES + " INTEGER NOT NULL, " +
+                SyncLogEntry.COLUMN_ROWS + " INTEGER NOT NULL);";
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TIME_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_LOG_TABLE);
+
+        // Whatever ids were handed out before belong to the tables just replaced
+        LocationIdCache.clear();
     }
 
     @Override
@@ -93,6 +302,8 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         // should be your top priority before modifying this method.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncLogEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
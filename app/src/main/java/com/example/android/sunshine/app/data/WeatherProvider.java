@@ -17,12 +17,27 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.text.format.Time;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 public class WeatherProvider extends ContentProvider {
 
@@ -30,10 +45,33 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // Location weather queries, answered from memory until a write touches what they read
+    private final QueryCache mQueryCache = new QueryCache();
+
+    // Set on the thread running applyBatch: its inserts share compiled statements, and its
+    // notifications are held back until the whole batch has committed
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    private static final class Batch {
+        final CompiledInserts inserts;
+        final Set<Uri> changedUris = new LinkedHashSet<Uri>();
+        // The extras of METHOD_APPLY_BATCH, holding the days its inserts write, or null
+        final Bundle extras;
+
+        Batch(SQLiteDatabase db, Bundle extras) {
+            inserts = new CompiledInserts(db);
+            this.extras = extras;
+        }
+    }
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int HOURLY = 400;
+    static final int HOURLY_WITH_LOCATION = 401;
+    static final int HOURLY_WITH_LOCATION_AND_RANGE = 402;
+    static final int SYNC_LOG = 500;
 
     private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
@@ -68,6 +106,69 @@ public class WeatherProvider extends ContentProvider {
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    // Without the join the location is known by row ID, and a query is a range scan of the
+    // (location_id, date) index on the weather table alone
+
+    //location_id = ?
+    private static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //location_id = ? AND date >= ?
+    private static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //location_id = ? AND date = ?
+    private static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    // The columns only the location table can answer.  The setting is left out, since a weather
+    // uri carries it.
+    private static final String[] sJoinedLocationColumns = {
+            WeatherContract.LocationEntry.TABLE_NAME + ".",
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.LocationEntry.COLUMN_CITY_ID,
+            WeatherContract.LocationEntry.COLUMN_ETAG,
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED,
+            WeatherContract.LocationEntry.COLUMN_PAYLOAD_DIGEST
+    };
+
+    //location_id = (SELECT _id FROM location WHERE location_setting = ?)
+    // The hourly table is read on its own, so a range query walks the (location_id, time) index
+    // instead of joining every point with its location.
+    private static final String sHourlyLocationSettingSelection =
+            WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = (SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?) ";
+
+    //location_id = (...) AND time >= ? AND time < ?
+    private static final String sHourlyLocationSettingAndRangeSelection =
+            sHourlyLocationSettingSelection + "AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " >= ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " < ? ";
+
+    // The columns a WeatherBatch carries, in the order they are bound
+    private static final String sInsertDayStatement =
+            "INSERT INTO " + WeatherContract.WeatherEntry.TABLE_NAME + " (" +
+                    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_DEGREES +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String sHourlyDefaultSortOrder =
+            WeatherContract.HourlyEntry.COLUMN_TIME + " ASC";
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -75,6 +176,26 @@ public class WeatherProvider extends ContentProvider {
         String[] selectionArgs;
         String selection;
 
+        if (!needsLocationJoin(projection)) {
+            String locationId = Long.toString(resolveLocationId(locationSetting));
+            if (startDate == 0) {
+                selection = sLocationIdSelection;
+                selectionArgs = new String[]{locationId};
+            } else {
+                selection = sLocationIdWithStartDateSelection;
+                selectionArgs = new String[]{locationId, Long.toString(startDate)};
+            }
+            return mOpenHelper.getReadableDatabase().query(
+                    WeatherContract.WeatherEntry.TABLE_NAME,
+                    withLocationSetting(projection, locationSetting),
+                    selection,
+                    selectionArgs,
+                    null,
+                    null,
+                    sortOrder
+            );
+        }
+
         if (startDate == 0) {
             selection = sLocationSettingSelection;
             selectionArgs = new String[]{locationSetting};
@@ -98,6 +219,19 @@ public class WeatherProvider extends ContentProvider {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
+        if (!needsLocationJoin(projection)) {
+            return mOpenHelper.getReadableDatabase().query(
+                    WeatherContract.WeatherEntry.TABLE_NAME,
+                    withLocationSetting(projection, locationSetting),
+                    sLocationIdAndDaySelection,
+                    new String[]{Long.toString(resolveLocationId(locationSetting)),
+                            Long.toString(date)},
+                    null,
+                    null,
+                    sortOrder
+            );
+        }
+
         return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
                 sLocationSettingAndDaySelection,
@@ -108,6 +242,142 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    /**
+     * Helper method to answer a location's weather query from the query cache, running it and
+     * caching the result on a miss.  The rows are read off through Cursor.getType, so before
+     * API 11 every query goes to the database.
+     *
+     * @param singleDay true for a weather/location/date uri, false for a weather/location one
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private Cursor getCachedWeather(Uri uri, String[] projection, String sortOrder,
+                                    boolean singleDay) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return singleDay ? getWeatherByLocationSettingAndDate(uri, projection, sortOrder)
+                    : getWeatherByLocationSetting(uri, projection, sortOrder);
+        }
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        long date = singleDay ? WeatherContract.WeatherEntry.getDateFromUri(uri)
+                : WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        String key = QueryCache.buildKey(locationSetting, date, singleDay, projection, sortOrder);
+        Cursor cached = mQueryCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        long generation = mQueryCache.getGeneration();
+        Cursor cursor = singleDay ? getWeatherByLocationSettingAndDate(uri, projection, sortOrder)
+                : getWeatherByLocationSetting(uri, projection, sortOrder);
+        try {
+            return mQueryCache.put(key, generation, locationSetting, date, singleDay, cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return true unless every column of the projection can be read from the weather table, or
+     * is the location setting.  No projection means every column, the location's included.
+     */
+    private static boolean needsLocationJoin(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            // Matching on the name anywhere in the column errs on the side of joining, should a
+            // location column be wrapped in an expression
+            String lowerColumn = column.toLowerCase(Locale.US);
+            for (String locationColumn : sJoinedLocationColumns) {
+                if (lowerColumn.contains(locationColumn)
+                        && !isLocationSetting(lowerColumn)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLocationSetting(String lowerColumn) {
+        return lowerColumn.equals(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)
+                || lowerColumn.equals(WeatherContract.LocationEntry.TABLE_NAME + "."
+                + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+    }
+
+    /**
+     * Helper method to answer the location setting of a joinless weather query from the uri.
+     *
+     * @return the projection with each location setting column replaced by the setting itself
+     */
+    private static String[] withLocationSetting(String[] projection, String locationSetting) {
+        String[] columns = projection.clone();
+        for (int i = 0; i < columns.length; i++) {
+            if (isLocationSetting(columns[i].toLowerCase(Locale.US))) {
+                columns[i] = DatabaseUtils.sqlEscapeString(locationSetting) + " AS "
+                        + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Helper method to find the row ID of a location setting for a query, through
+     * {@link LocationIdCache} when it can.
+     *
+     * @return the row ID, or {@link LocationIdCache#NO_ID} if there is no such location, which
+     * matches no weather row
+     */
+    private long resolveLocationId(String locationSetting) {
+        long locationId = LocationIdCache.get(locationSetting);
+        if (locationId != LocationIdCache.NO_ID) {
+            return locationId;
+        }
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                sLocationSettingSelection,
+                new String[]{locationSetting},
+                null,
+                null,
+                null);
+        try {
+            if (cursor.moveToFirst()) {
+                locationId = cursor.getLong(0);
+                LocationIdCache.put(locationSetting, locationId);
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationId;
+    }
+
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder,
+                                              boolean withRange) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+
+        String[] selectionArgs;
+        String selection;
+
+        if (withRange) {
+            selection = sHourlyLocationSettingAndRangeSelection;
+            selectionArgs = new String[]{locationSetting,
+                    Long.toString(WeatherContract.HourlyEntry.getStartTimeFromUri(uri)),
+                    Long.toString(WeatherContract.HourlyEntry.getEndTimeFromUri(uri))};
+        } else {
+            selection = sHourlyLocationSettingSelection;
+            selectionArgs = new String[]{locationSetting};
+        }
+
+        return mOpenHelper.getReadableDatabase().query(
+                WeatherContract.HourlyEntry.TABLE_NAME,
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder != null ? sortOrder : sHourlyDefaultSortOrder
+        );
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +400,12 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*/#/#", HOURLY_WITH_LOCATION_AND_RANGE);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_LOG, SYNC_LOG);
         return matcher;
     }
 
@@ -164,6 +440,14 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case HOURLY_WITH_LOCATION_AND_RANGE:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case HOURLY:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case SYNC_LOG:
+                return WeatherContract.SyncLogEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -179,12 +463,12 @@ public class WeatherProvider extends ContentProvider {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+                retCursor = getCachedWeather(uri, projection, sortOrder, true);
                 break;
             }
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                retCursor = getCachedWeather(uri, projection, sortOrder, false);
                 break;
             }
             // "weather"
@@ -213,6 +497,42 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "hourly/*/#/#"
+            case HOURLY_WITH_LOCATION_AND_RANGE: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder, true);
+                break;
+            }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder, false);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "sync_log"
+            case SYNC_LOG: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncLogEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -229,21 +549,75 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
+        Uri changedUri = uri;
 
         switch (match) {
             case WEATHER: {
-                normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                normalizeDate(values, new Time());
+                long _id = insertRow(db, WeatherContract.WeatherEntry.TABLE_NAME, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                changedUri = buildDayUri(db,
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
                 break;
             }
-            case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+            // "weather/*", so that a batch can announce only the day it wrote
+            case WEATHER_WITH_LOCATION: {
+                if (WeatherContract.WeatherEntry.isDaysUri(uri)) {
+                    // insertDays announces each day it writes
+                    returnUri = insertBatchDays(uri, values);
+                    changedUri = null;
+                    break;
+                }
+                normalizeDate(values, new Time());
+                long _id = insertRow(db, WeatherContract.WeatherEntry.TABLE_NAME, values);
                 if ( _id > 0 )
+                    returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                changedUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                break;
+            }
+            case LOCATION: {
+                if (WeatherContract.LocationEntry.isUpsertUri(uri)) {
+                    // upsertLocation announces the location table itself, and only if it added
+                    // a row
+                    returnUri = WeatherContract.LocationEntry.buildLocationUri(
+                            upsertLocation(values));
+                    changedUri = null;
+                    break;
+                }
+                long _id = insertRow(db, WeatherContract.LocationEntry.TABLE_NAME, values);
+                if ( _id > 0 ) {
+                    String locationSetting = values.getAsString(
+                            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                    if (locationSetting != null) {
+                        LocationIdCache.put(locationSetting, _id);
+                    }
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
+                } else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            // "hourly/*" as well, so that a batch can announce only the location it wrote
+            case HOURLY_WITH_LOCATION:
+            case HOURLY: {
+                long _id = insertRow(db, WeatherContract.HourlyEntry.TABLE_NAME, values);
+                if ( _id > 0 )
+                    returnUri = WeatherContract.HourlyEntry.buildHourlyUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            case SYNC_LOG: {
+                long _id = insertSyncLogEntry(db, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
@@ -251,41 +625,109 @@ public class WeatherProvider extends ContentProvider {
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (changedUri != null) {
+            notifyChange(changedUri);
+        }
         return returnUri;
     }
 
+    /**
+     * Helper method to insert a row, through the compiled statements of the batch when one is
+     * being applied on this thread.
+     *
+     * @return the row ID of the new row, or -1 on failure
+     */
+    private long insertRow(SQLiteDatabase db, String table, ContentValues values) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            return batch.inserts.insert(table, values);
+        }
+        return db.insert(table, null, values);
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        // The days the delete removes, or null to announce the uri it was called with
+        Set<Uri> changedUris = null;
+        // Emptying the table concerns every observer anyway
+        boolean deleteAll = null == selection;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
             case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                if (deleteAll) {
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    break;
+                }
+                changedUris = new LinkedHashSet<Uri>();
+                db.beginTransaction();
+                try {
+                    addDayUris(db, selection, selectionArgs, null, changedUris);
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    LocationIdCache.clear();
+                }
+                break;
+            case HOURLY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case SYNC_LOG:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncLogEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChanges(uri, changedUris);
         }
         return rowsDeleted;
     }
 
-    private void normalizeDate(ContentValues values) {
+    /**
+     * Adds a sync log entry and drops the ones that fall out of the ring buffer.  Ids only grow,
+     * so the oldest entries are found through the primary key.
+     *
+     * @return the row ID of the entry, or -1 on failure
+     */
+    private long insertSyncLogEntry(SQLiteDatabase db, ContentValues values) {
+        long _id;
+        db.beginTransaction();
+        try {
+            _id = db.insert(WeatherContract.SyncLogEntry.TABLE_NAME, null, values);
+            if (_id > 0) {
+                db.delete(WeatherContract.SyncLogEntry.TABLE_NAME,
+                        WeatherContract.SyncLogEntry._ID + " <= ?",
+                        new String[]{Long.toString(_id - WeatherContract.SyncLogEntry.MAX_ENTRIES)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return _id;
+    }
+
+    private void normalizeDate(ContentValues values, Time time) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
             long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(dateValue));
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    WeatherContract.normalizeDate(dateValue, time));
         }
     }
 
@@ -295,22 +737,42 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsUpdated;
+        // The days the update touches, or null to announce the uri it was called with
+        Set<Uri> changedUris = null;
 
         switch (match) {
             case WEATHER:
-                normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                normalizeDate(values, new Time());
+                changedUris = new LinkedHashSet<Uri>();
+                db.beginTransaction();
+                try {
+                    addDayUris(db, selection, selectionArgs, values, changedUris);
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                            selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                // Validators and city ids are rewritten every sync; only a new setting can move
+                // a setting to another row
+                if (rowsUpdated != 0
+                        && values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)) {
+                    LocationIdCache.clear();
+                }
+                break;
+            case HOURLY:
+                rowsUpdated = db.update(WeatherContract.HourlyEntry.TABLE_NAME, values, selection,
+                        selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChanges(uri, changedUris);
         }
         return rowsUpdated;
     }
@@ -320,28 +782,457 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
-            case WEATHER:
+            // "weather/*"
+            case WEATHER_WITH_LOCATION: {
+                // Every row belongs to the location in the uri, so only the days actually written
+                // are announced.  Observers of the location's other days, or of other locations,
+                // are left alone.
+                String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+                long[] insertedDates = new long[values.length];
+                int returnCount = 0;
+                Time time = new Time();
                 db.beginTransaction();
+                CompiledInserts inserts = new CompiledInserts(db);
+                try {
+                    for (ContentValues value : values) {
+                        normalizeDate(value, time);
+                        long _id = inserts.insert(WeatherContract.WeatherEntry.TABLE_NAME, value);
+                        if (_id != -1) {
+                            insertedDates[returnCount++] =
+                                    value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    inserts.close();
+                    db.endTransaction();
+                }
+                mOpenHelper.requestCheckpoint();
+                notifyDays(locationSetting, insertedDates, returnCount);
+                return returnCount;
+            }
+            case WEATHER: {
+                // The rows may belong to any location, so each one's day is worked out from
+                // its own columns
+                Set<Uri> changedUris = new LinkedHashSet<Uri>();
+                Time time = new Time();
+                db.beginTransaction();
+                CompiledInserts inserts = new CompiledInserts(db);
                 int returnCount = 0;
                 try {
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        normalizeDate(value, time);
+                        long _id = inserts.insert(WeatherContract.WeatherEntry.TABLE_NAME, value);
                         if (_id != -1) {
                             returnCount++;
+                            changedUris.add(buildDayUri(db,
+                                    value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                                    value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)));
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
+                    inserts.close();
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                mOpenHelper.requestCheckpoint();
+                notifyChanges(uri, changedUris);
                 return returnCount;
+            }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION:
+            case HOURLY: {
+                // A sync replaces a location's whole series at once, so one notification on the
+                // uri covers every range query open on it.
+                int pointCount = 0;
+                db.beginTransaction();
+                CompiledInserts inserts = new CompiledInserts(db);
+                try {
+                    for (ContentValues value : values) {
+                        long _id = inserts.insert(WeatherContract.HourlyEntry.TABLE_NAME, value);
+                        if (_id != -1) {
+                            pointCount++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    inserts.close();
+                    db.endTransaction();
+                }
+                mOpenHelper.requestCheckpoint();
+                if (pointCount > 0) {
+                    notifyChange(uri);
+                }
+                return pointCount;
+            }
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Applies every operation in one transaction, so a sync's writes land together or not at
+     * all.  Inserts share compiled statements, and each changed uri is announced once, after the
+     * commit; a uri under another changed uri is covered by that one's notification.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        return applyBatch(operations, null);
+    }
+
+    /**
+     * @param extras the extras of METHOD_APPLY_BATCH, or null
+     */
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations,
+                                               Bundle extras)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Batch batch = new Batch(db, extras);
+        ContentProviderResult[] results = null;
+        db.beginTransaction();
+        mBatch.set(batch);
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            mBatch.remove();
+            batch.inserts.close();
+            db.endTransaction();
+            if (results == null) {
+                // Locations the batch added, and cached, were rolled back with it
+                LocationIdCache.clear();
+            }
+        }
+        mOpenHelper.requestCheckpoint();
+        for (Uri changedUri : batch.changedUris) {
+            if (!hasAncestorIn(changedUri, batch.changedUris)) {
+                announce(changedUri);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Helper method to announce a change, or to hold it back until the end of the batch being
+     * applied on this thread.
+     */
+    private void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.changedUris.add(uri);
+        } else {
+            announce(uri);
+        }
+    }
+
+    /**
+     * Helper method to drop the cached queries a committed change touched, then tell the
+     * observers about it.
+     */
+    private void announce(Uri uri) {
+        mQueryCache.invalidate(uri);
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Helper method to announce the changed day uris a write worked out, or the uri the write was
+     * called with when it did not work them out.
+     */
+    private void notifyChanges(Uri uri, Set<Uri> changedUris) {
+        if (changedUris == null) {
+            notifyChange(uri);
+            return;
+        }
+        for (Uri changedUri : changedUris) {
+            notifyChange(changedUri);
+        }
+    }
+
+    /**
+     * Helper method to collect the day uris of the weather rows a selection picks, before they
+     * are updated or deleted.  An update that moves rows to another location or date changes the
+     * days they land on as well.
+     *
+     * @param values the values of an update, or null for a delete
+     */
+    private void addDayUris(SQLiteDatabase db, String selection, String[] selectionArgs,
+                            ContentValues values, Set<Uri> changedUris) {
+        Long newLocationId = null;
+        Long newDate = null;
+        if (values != null) {
+            newLocationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+            newDate = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        }
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                        WeatherContract.WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                long locationId = cursor.getLong(0);
+                long date = cursor.getLong(1);
+                changedUris.add(buildDayUri(db, locationId, date));
+                if (newLocationId != null || newDate != null) {
+                    changedUris.add(buildDayUri(db,
+                            newLocationId != null ? newLocationId : locationId,
+                            newDate != null ? newDate : date));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the uri of one location's day, which reaches observers of that day and of the
+     * location's forecast, but no one else
+     */
+    private Uri buildDayUri(SQLiteDatabase db, Long locationId, Long date) {
+        String locationSetting = locationId != null ? getLocationSetting(db, locationId) : null;
+        if (locationSetting == null || date == null) {
+            // Not a day of any known location; only the table's uri is sure to reach its viewers
+            return WeatherContract.WeatherEntry.CONTENT_URI;
+        }
+        return WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationSetting, date);
+    }
+
+    /**
+     * @return the setting of the location in the given row, or null if there is no such row
+     */
+    private String getLocationSetting(SQLiteDatabase db, long locationId) {
+        String locationSetting = LocationIdCache.getSetting(locationId);
+        if (locationSetting != null) {
+            return locationSetting;
+        }
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)},
+                null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                locationSetting = cursor.getString(0);
+                LocationIdCache.put(locationSetting, locationId);
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationSetting;
+    }
+
+    /**
+     * @return true if one of the uris is a proper ancestor of the given one, and so already
+     * reaches its observers
+     */
+    private static boolean hasAncestorIn(Uri uri, Set<Uri> uris) {
+        List<String> segments = uri.getPathSegments();
+        for (Uri other : uris) {
+            List<String> otherSegments = other.getPathSegments();
+            if (otherSegments.size() < segments.size()
+                    && segments.subList(0, otherSegments.size()).equals(otherSegments)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_APPLY_BATCH.equals(method)) {
+            ArrayList<ContentProviderOperation> operations =
+                    extras.getParcelableArrayList(WeatherContract.KEY_OPERATIONS);
+            try {
+                applyBatch(operations, extras);
+            } catch (OperationApplicationException e) {
+                // Rolled back; the caller sees the null result and keeps nothing of the batch
+                return null;
+            }
+            return new Bundle();
+        }
+        if (WeatherContract.WeatherEntry.METHOD_INSERT_DAYS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.WeatherEntry.KEY_INSERTED_COUNT,
+                    insertDays(arg, extras));
+            return result;
+        }
+        if (WeatherContract.WeatherEntry.METHOD_QUERY_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.WeatherEntry.KEY_CACHE_HITS, mQueryCache.getHitCount());
+            result.putInt(WeatherContract.WeatherEntry.KEY_CACHE_MISSES,
+                    mQueryCache.getMissCount());
+            return result;
+        }
+        if (WeatherContract.LocationEntry.METHOD_UPSERT_LOCATION.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(WeatherContract.LocationEntry.KEY_LOCATION_ID,
+                    upsertLocation(arg, extras));
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Finds the row of a location setting, adding it if there is none.  A cached row ID is
+     * answered without touching the database at all.
+     *
+     * @param locationSetting the location setting to resolve
+     * @param extras city name and coordinates to store if the location is new, or null
+     * @return the row ID of the location
+     */
+    private long upsertLocation(String locationSetting, Bundle extras) {
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        if (extras != null) {
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                    extras.getString(WeatherContract.LocationEntry.COLUMN_CITY_NAME));
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                    extras.getDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT));
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+                    extras.getDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG));
+        }
+        return upsertLocation(locationValues);
+    }
+
+    /**
+     * Finds the row of the location setting in locationValues, adding a row made of
+     * locationValues if there is none.  This backs both METHOD_UPSERT_LOCATION and inserts on
+     * the upsert uri, which a batch uses so that its later operations can back-reference the
+     * row ID.
+     *
+     * @return the row ID of the location
+     */
+    private long upsertLocation(ContentValues locationValues) {
+        String locationSetting = locationValues.getAsString(
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("An upsert needs a location setting");
+        }
+        long locationId = LocationIdCache.get(locationSetting);
+        if (locationId != LocationIdCache.NO_ID) {
+            return locationId;
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean inserted = false;
+        db.beginTransaction();
+        try {
+            Cursor locationCursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    new String[]{WeatherContract.LocationEntry._ID},
+                    sLocationSettingSelection,
+                    new String[]{locationSetting},
+                    null,
+                    null,
+                    null);
+            try {
+                if (locationCursor.moveToFirst()) {
+                    locationId = locationCursor.getLong(0);
+                }
+            } finally {
+                locationCursor.close();
+            }
+            if (locationId == LocationIdCache.NO_ID) {
+                locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                        locationValues);
+                if (locationId == -1) {
+                    throw new android.database.SQLException(
+                            "Failed to insert location " + locationSetting);
+                }
+                inserted = true;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        LocationIdCache.put(locationSetting, locationId);
+        if (inserted) {
+            notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+        }
+        return locationId;
+    }
+
+    /**
+     * Writes the days of a WeatherBatch for one location.  The columns are bound straight from
+     * the batch's arrays into one compiled insert, so no row is ever turned into ContentValues,
+     * and one Time serves every date that is normalized.
+     *
+     * @param locationSetting the location the days belong to, used for the notifications
+     * @param extras the batch, as packed by {@link WeatherBatch#toBundle(long)}
+     * @return the number of days written
+     */
+    private int insertDays(String locationSetting, Bundle extras) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        WeatherBatch days = WeatherBatch.fromBundle(extras);
+        long locationId = extras.getLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        long[] insertedDates = new long[days.size()];
+        int insertCount = 0;
+        Time time = new Time();
+        db.beginTransaction();
+        SQLiteStatement insertDay = db.compileStatement(sInsertDayStatement);
+        try {
+            for (int i = 0; i < days.size(); i++) {
+                long date = WeatherContract.normalizeDate(days.getDate(i), time);
+                insertDay.bindLong(1, locationId);
+                insertDay.bindLong(2, date);
+                insertDay.bindLong(3, days.getWeatherId(i));
+                if (days.getDescription(i) != null) {
+                    insertDay.bindString(4, days.getDescription(i));
+                } else {
+                    insertDay.bindNull(4);
+                }
+                insertDay.bindDouble(5, days.getMinTemp(i));
+                insertDay.bindDouble(6, days.getMaxTemp(i));
+                insertDay.bindDouble(7, days.getHumidity(i));
+                insertDay.bindDouble(8, days.getPressure(i));
+                insertDay.bindDouble(9, days.getWindSpeed(i));
+                insertDay.bindDouble(10, days.getDegrees(i));
+                if (insertDay.executeInsert() != -1) {
+                    insertedDates[insertCount++] = date;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insertDay.close();
+            db.endTransaction();
+        }
+        mOpenHelper.requestCheckpoint();
+        notifyDays(locationSetting, insertedDates, insertCount);
+        return insertCount;
+    }
+
+    /**
+     * Writes the WeatherBatch that the batch being applied on this thread carries for the
+     * location of a days uri, bound to the row ID in values.
+     *
+     * @return the location's weather uri
+     */
+    private Uri insertBatchDays(Uri uri, ContentValues values) {
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        Batch batch = mBatch.get();
+        Bundle days = batch != null && batch.extras != null
+                ? batch.extras.getBundle(WeatherContract.WeatherEntry.getDaysKey(locationSetting))
+                : null;
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        if (days == null || locationId == null) {
+            throw new IllegalArgumentException("No days to insert for " + uri);
+        }
+        days.putLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+        insertDays(locationSetting, days);
+        return WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting);
+    }
+
+    /**
+     * Announces each day written for a location.  Observers of the location's other days, or of
+     * other locations, are left alone.
+     */
+    private void notifyDays(String locationSetting, long[] dates, int count) {
+        for (int i = 0; i < count; i++) {
+            notifyChange(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                    locationSetting, dates[i]));
+        }
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
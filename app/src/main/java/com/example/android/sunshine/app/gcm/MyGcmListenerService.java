@@ -29,18 +29,34 @@ import android.widget.Toast;
 
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.sync.ForecastDelta;
+import com.example.android.sunshine.app.sync.SyncRequestCoordinator;
+import com.example.android.sunshine.app.sync.SyncSchedulePolicy;
 import com.google.android.gms.gcm.GcmListenerService;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class MyGcmListenerService extends GcmListenerService {
 
     private static final String TAG = "MyGcmListenerService";
 
     private static final String EXTRA_DATA = "data";
+    private static final String EXTRA_TYPE = "type";
     private static final String EXTRA_WEATHER = "weather";
     private static final String EXTRA_LOCATION = "location";
+    private static final String EXTRA_LOCATIONS = "locations";
+
+    // Messages without a type are weather alerts
+    private static final String TYPE_ALERT = "alert";
+    // Names the locations whose forecast changed upstream
+    private static final String TYPE_INVALIDATE = "invalidate";
+    // Carries the changes themselves, see ForecastDelta
+    private static final String TYPE_DELTA = "delta";
 
     public static final int NOTIFICATION_ID = 1;
 
@@ -65,11 +81,22 @@ public class MyGcmListenerService extends GcmListenerService {
                 // Process message and then post a notification of the received message.
                 try {
                     JSONObject jsonObject = new JSONObject(data.getString(EXTRA_DATA));
-                    String weather = jsonObject.getString(EXTRA_WEATHER);
-                    String location = jsonObject.getString(EXTRA_LOCATION);
-                    String alert =
-                            String.format(getString(R.string.gcm_weather_alert), weather, location);
-                    sendNotification(alert);
+                    String type = jsonObject.optString(EXTRA_TYPE, TYPE_ALERT);
+                    if (TYPE_INVALIDATE.equals(type)) {
+                        onForecastInvalidated(jsonObject);
+                    } else if (TYPE_DELTA.equals(type)) {
+                        ForecastDelta delta = ForecastDelta.parse(jsonObject);
+                        SyncSchedulePolicy.onPushInvalidation(this);
+                        delta.apply(this);
+                    } else {
+                        String weather = jsonObject.getString(EXTRA_WEATHER);
+                        String location = jsonObject.getString(EXTRA_LOCATION);
+                        String alert = String.format(getString(R.string.gcm_weather_alert),
+                                weather, location);
+                        sendNotification(alert);
+                        // Keep the forecast fresh while the alert is in effect
+                        SyncSchedulePolicy.onWeatherAlert(this);
+                    }
                 } catch (JSONException e) {
                     // JSON parsing failed, so we just let this message go, since GCM is not one
                     // of our critical features.
@@ -79,6 +106,26 @@ public class MyGcmListenerService extends GcmListenerService {
         }
     }
 
+    /**
+     * Refreshes just the locations whose forecast the server says has changed.  Since changes
+     * are now pushed to us, the periodic sync backs off.
+     *
+     * @param message The invalidation, with the changed location settings under "locations".
+     * @throws JSONException if the message names no locations
+     */
+    private void onForecastInvalidated(JSONObject message) throws JSONException {
+        JSONArray locationArray = message.getJSONArray(EXTRA_LOCATIONS);
+        List<String> locations = new ArrayList<String>(locationArray.length());
+        for (int i = 0; i < locationArray.length(); i++) {
+            locations.add(locationArray.getString(i));
+        }
+        SyncSchedulePolicy.onPushInvalidation(this);
+        if (!locations.isEmpty()) {
+            SyncRequestCoordinator.getInstance(this)
+                    .requestLocationSync(SyncRequestCoordinator.REASON_GCM, locations);
+        }
+    }
+
     /**
      *  Put the message into a notification and post it.
      *  This is just one simple example of what you might choose to do with a GCM message.
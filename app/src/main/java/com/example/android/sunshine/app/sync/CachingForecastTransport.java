@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link ForecastTransport} that keeps the last good response for each URL on disk.
+ *
+ * <ul>
+ * <li>A response younger than {@link #FRESH_MILLIS} is answered from disk without touching the
+ * network.</li>
+ * <li>When the network fails, a response younger than {@link #MAX_STALE_MILLIS} is answered from
+ * disk instead, so the sync can still rebuild the weather rows.</li>
+ * <li>Bodies are teed into the cache as the caller reads them, and only kept once they have been
+ * read to the end and the caller has {@linkplain Response#commit() committed} them.</li>
+ * <li>Once the cache outgrows {@link #MAX_CACHE_BYTES} the least recently stored entries are
+ * evicted.</li>
+ * </ul>
+ *
+ * Each entry is one file: the time it was stored, its ETag and Last-Modified, then the raw body.
+ */
+class CachingForecastTransport implements ForecastTransport {
+    private static final String LOG_TAG = CachingForecastTransport.class.getSimpleName();
+
+    static final long FRESH_MILLIS = 1000 * 60 * 10;
+    // Days are laid out from today when a body is parsed, so don't let one outlive the day by much
+    static final long MAX_STALE_MILLIS = 1000 * 60 * 60 * 12;
+    static final long MAX_CACHE_BYTES = 512 * 1024;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String STALE_WARNING = "111 - \"Revalidation Failed\"";
+
+    private final ForecastTransport mDelegate;
+    private final File mDirectory;
+
+    CachingForecastTransport(ForecastTransport delegate, File directory) {
+        mDelegate = delegate;
+        mDirectory = directory;
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        File entry = getEntryFile(url);
+        CachedResponse cached = CachedResponse.open(entry);
+        boolean noCache = ForecastTransport.CACHE_CONTROL_NO_CACHE.equals(
+                headers.get(ForecastTransport.HEADER_CACHE_CONTROL));
+        if (cached != null && !noCache && cached.age() < FRESH_MILLIS) {
+            Log.d(LOG_TAG, "Fresh cache hit for " + entry.getName());
+            return cached.answer(headers, false);
+        }
+
+        Response response;
+        try {
+            response = mDelegate.get(url, headers);
+        } catch (IOException e) {
+            if (cached != null && cached.age() < MAX_STALE_MILLIS) {
+                Log.d(LOG_TAG, "Network failed, answering stale entry " + entry.getName());
+                return cached.answer(headers, true);
+            }
+            closeQuietly(cached);
+            throw e;
+        }
+        closeQuietly(cached);
+
+        if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            // What we hold is still current; restart its clock
+            touch(entry);
+            return response;
+        }
+        return new TeeResponse(response, entry);
+    }
+
+    private File getEntryFile(String url) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(mDirectory, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void touch(File entry) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(entry, "rw");
+            file.writeLong(System.currentTimeMillis());
+        } catch (IOException e) {
+            // The entry just expires sooner
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Drops the least recently stored entries until the cache fits in its budget.
+     */
+    private synchronized void trim() {
+        File[] entries = mDirectory.listFiles();
+        if (entries == null) {
+            return;
+        }
+        long size = 0;
+        for (File entry : entries) {
+            size += entry.length();
+        }
+        if (size <= MAX_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File entry : entries) {
+            if (size <= MAX_CACHE_BYTES) {
+                break;
+            }
+            if (entry.getName().endsWith(TEMP_SUFFIX)) {
+                // Someone is still writing it
+                continue;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing useful to do about it
+            }
+        }
+    }
+
+    /**
+     * An entry read back from disk.
+     */
+    private static final class CachedResponse extends Response {
+        private final long mStoredAt;
+        private final Map<String, String> mHeaders =
+                new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        private final DataInputStream mIn;
+        private int mCode = HttpURLConnection.HTTP_OK;
+
+        private CachedResponse(DataInputStream in) throws IOException {
+            mIn = in;
+            mStoredAt = in.readLong();
+            String etag = in.readUTF();
+            String lastModified = in.readUTF();
+            if (etag.length() > 0) {
+                mHeaders.put(HEADER_ETAG, etag);
+            }
+            if (lastModified.length() > 0) {
+                mHeaders.put(HEADER_LAST_MODIFIED, lastModified);
+            }
+        }
+
+        /**
+         * @return the entry stored in the file, or null if there is none we can read
+         */
+        static CachedResponse open(File entry) {
+            if (!entry.isFile()) {
+                return null;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+                return new CachedResponse(in);
+            } catch (IOException e) {
+                closeQuietly(in);
+                return null;
+            }
+        }
+
+        long age() {
+            return System.currentTimeMillis() - mStoredAt;
+        }
+
+        /**
+         * @param stale true if the entry stands in for a failed request
+         * @return this entry as the answer to a request with the given headers
+         */
+        Response answer(Map<String, String> headers, boolean stale) {
+            mHeaders.put(HEADER_X_CACHE, X_CACHE_HIT);
+            if (stale) {
+                mHeaders.put(HEADER_WARNING, STALE_WARNING);
+            }
+            String etag = mHeaders.get(HEADER_ETAG);
+            if (etag != null && etag.equals(headers.get(HEADER_IF_NONE_MATCH))) {
+                mCode = HttpURLConnection.HTTP_NOT_MODIFIED;
+            }
+            return this;
+        }
+
+        @Override
+        public int code() {
+            return mCode;
+        }
+
+        @Override
+        public String header(String name) {
+            return mHeaders.get(name);
+        }
+
+        @Override
+        public InputStream body() {
+            return mIn;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    /**
+     * A network response whose body is copied into a new entry as it is read.
+     */
+    private final class TeeResponse extends Response {
+        private final Response mResponse;
+        private final File mEntry;
+        private final File mTemp;
+        private OutputStream mOut;
+        private boolean mComplete;
+        private boolean mCommitted;
+
+        TeeResponse(Response response, File entry) {
+            mResponse = response;
+            mEntry = entry;
+            mTemp = new File(entry.getPath() + TEMP_SUFFIX + Thread.currentThread().getId());
+        }
+
+        @Override
+        public int code() {
+            return mResponse.code();
+        }
+
+        @Override
+        public String header(String name) {
+            return mResponse.header(name);
+        }
+
+        @Override
+        public long dnsNanos() {
+            return mResponse.dnsNanos();
+        }
+
+        @Override
+        public long connectNanos() {
+            return mResponse.connectNanos();
+        }
+
+        @Override
+        public long ttfbNanos() {
+            return mResponse.ttfbNanos();
+        }
+
+        @Override
+        public InputStream body() throws IOException {
+            InputStream body = mResponse.body();
+            try {
+                mDirectory.mkdirs();
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(mTemp));
+                out.writeLong(System.currentTimeMillis());
+                out.writeUTF(nullToEmpty(mResponse.header(HEADER_ETAG)));
+                out.writeUTF(nullToEmpty(mResponse.header(HEADER_LAST_MODIFIED)));
+                mOut = out;
+            } catch (IOException e) {
+                // Serve the body anyway, it just won't be cached
+                Log.w(LOG_TAG, "Can't cache " + mEntry.getName(), e);
+                closeQuietly(mOut);
+                mOut = null;
+                return body;
+            }
+            return new FilterInputStream(body) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b == -1) {
+                        mComplete = true;
+                    } else {
+                        write(new byte[] {(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read == -1) {
+                        mComplete = true;
+                    } else {
+                        write(buffer, offset, read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        private void write(byte[] buffer, int offset, int count) {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Can't cache " + mEntry.getName(), e);
+                closeQuietly(mOut);
+                mOut = null;
+            }
+        }
+
+        @Override
+        public void commit() {
+            mCommitted = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mResponse.close();
+            } finally {
+                if (mOut != null) {
+                    closeQuietly(mOut);
+                    // Only a body read to the end and parsed as a forecast is worth replaying
+                    if (mComplete && mCommitted && mTemp.renameTo(mEntry)) {
+                        trim();
+                    } else {
+                        mTemp.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the consumers of a finished sync (widgets, Muzei, the watch, the notification) in
+ * parallel on a small background pool, so that the sync thread does not wait on them and one
+ * slow consumer cannot hold up the others.
+ *
+ * Every consumer gets its own deadline, counted from when it starts running; one still running
+ * when it passes is interrupted.
+ */
+class FanOutDispatcher {
+    private static final String LOG_TAG = FanOutDispatcher.class.getSimpleName();
+
+    private static final int MAX_THREADS = 4;
+    // Consumers from more syncs than this in flight are dropped; a newer sync will redo them
+    private static final int MAX_QUEUED = 16;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledThreadPoolExecutor mWatchdog;
+
+    FanOutDispatcher() {
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED));
+        mExecutor.allowCoreThreadTimeOut(true);
+        mWatchdog = new ScheduledThreadPoolExecutor(1);
+        mWatchdog.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mWatchdog.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts a consumer and returns without waiting for it.
+     *
+     * @param name what to call the consumer in the log
+     * @param consumer the work to run
+     * @param timeoutMillis how long the consumer may run before it is interrupted
+     */
+    void dispatch(final String name, final Runnable consumer, final long timeoutMillis) {
+        Runnable loggedConsumer = new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    consumer.run();
+                } catch (RuntimeException e) {
+                    // One consumer failing must not take the others, or the process, down
+                    Log.e(LOG_TAG, "Fan-out to " + name + " failed", e);
+                }
+                Log.d(LOG_TAG, "Fan-out to " + name + " took "
+                        + (System.nanoTime() - start) / 1000000 + "ms");
+            }
+        };
+        FutureTask<Void> task = new FutureTask<Void>(loggedConsumer, null) {
+            @Override
+            public void run() {
+                // The deadline counts from when the consumer starts, not from when it was
+                // queued behind the others
+                final Future<?> running = this;
+                ScheduledFuture<?> deadline = mWatchdog.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (running.cancel(true)) {
+                            Log.w(LOG_TAG, "Fan-out to " + name + " timed out");
+                        }
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+                try {
+                    super.run();
+                } finally {
+                    deadline.cancel(false);
+                }
+            }
+        };
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, "Fan-out backlog full, dropped " + name);
+        }
+    }
+}
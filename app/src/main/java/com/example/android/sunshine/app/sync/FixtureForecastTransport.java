@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link ForecastTransport} that answers from recorded responses instead of the network, so the
+ * sync can be exercised offline.
+ *
+ * Fixtures are matched on the request URL with the APPID parameter removed, so recordings work
+ * whatever API key the build uses.  A request with no fixture fails the way an unreachable
+ * server would, and a request whose If-None-Match equals the fixture's ETag gets a 304.
+ */
+public class FixtureForecastTransport implements ForecastTransport {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<String, Fixture> mFixtures = new HashMap<String, Fixture>();
+    private int mRequestCount;
+
+    /**
+     * Records the response to replay for a URL.
+     *
+     * @param url the request URL, with or without its APPID
+     * @param code the HTTP status to answer with
+     * @param etag the ETag to answer with, or null for none
+     * @param body the response body
+     */
+    public synchronized void addFixture(String url, int code, String etag, String body) {
+        mFixtures.put(stripAppId(url), new Fixture(code, etag, body.getBytes(UTF_8)));
+    }
+
+    /**
+     * @return how many requests this transport has answered or failed
+     */
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    @Override
+    public synchronized Response get(String url, Map<String, String> headers)
+            throws IOException {
+        mRequestCount++;
+        Fixture fixture = mFixtures.get(stripAppId(url));
+        if (fixture == null) {
+            throw new IOException("No fixture for " + url);
+        }
+        if (fixture.code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            throw new IOException("Unexpected HTTP " + fixture.code + " for " + url);
+        }
+        if (fixture.etag != null && fixture.etag.equals(headers.get(HEADER_IF_NONE_MATCH))) {
+            return new FixtureResponse(HttpURLConnection.HTTP_NOT_MODIFIED, fixture.etag,
+                    new byte[0]);
+        }
+        return new FixtureResponse(fixture.code, fixture.etag, fixture.body);
+    }
+
+    private static String stripAppId(String url) {
+        return url.replaceAll("[?&]APPID=[^&]*", "");
+    }
+
+    private static final class Fixture {
+        final int code;
+        final String etag;
+        final byte[] body;
+
+        Fixture(int code, String etag, byte[] body) {
+            this.code = code;
+            this.etag = etag;
+            this.body = body;
+        }
+    }
+
+    private static final class FixtureResponse extends Response {
+        private final int mCode;
+        private final Map<String, String> mHeaders =
+                new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        private final byte[] mBody;
+
+        FixtureResponse(int code, String etag, byte[] body) {
+            mCode = code;
+            if (etag != null) {
+                mHeaders.put(HEADER_ETAG, etag);
+            }
+            mBody = body;
+        }
+
+        @Override
+        public int code() {
+            return mCode;
+        }
+
+        @Override
+        public String header(String name) {
+            return mHeaders.get(name);
+        }
+
+        @Override
+        public InputStream body() {
+            return new ByteArrayInputStream(mBody);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
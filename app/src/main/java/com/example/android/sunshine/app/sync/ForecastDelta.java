@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.text.TextUtils;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.WeatherBatch;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+
+/**
+ * A small correction to the stored forecast of one location, pushed by the server so that it
+ * can be applied without asking OpenWeatherMap again.
+ *
+ * Version 1 looks like:
+ * <pre>
+ * {"type": "delta", "v": 1, "location": "94043",
+ *  "days": [{"dt": 1419033600, "min": 11.5, "max": 19.2, "id": 501, "main": "Rain"}]}
+ * </pre>
+ * Each day is named by its OWM timestamp, in seconds, and carries any of its temperatures and
+ * its weather; "id" and "main" come together.  A day is only patched if it is already stored,
+ * since the delta does not carry the rest of its columns.  Days we do not hold are left to a
+ * sync of the location.
+ */
+public final class ForecastDelta {
+    private static final String LOG_TAG = ForecastDelta.class.getSimpleName();
+
+    static final int VERSION = 1;
+
+    private static final String DELTA_VERSION = "v";
+    private static final String DELTA_LOCATION = "location";
+    private static final String DELTA_DAYS = "days";
+    private static final String DELTA_TIME = "dt";
+    private static final String DELTA_MIN = "min";
+    private static final String DELTA_MAX = "max";
+    private static final String DELTA_WEATHER_ID = "id";
+    private static final String DELTA_DESCRIPTION = "main";
+
+    // A full forecast holds this many days from today on, and a delta can touch no more
+    private static final int MAX_DAYS = 14;
+
+    // Anything outside these is a broken message rather than weather
+    private static final double MIN_PLAUSIBLE_TEMP = -100;
+    private static final double MAX_PLAUSIBLE_TEMP = 100;
+    private static final int MIN_WEATHER_ID = 200;
+    private static final int MAX_WEATHER_ID = 999;
+
+    private final String mLocationSetting;
+    private final int mSize;
+    private final long[] mDates;
+    private final boolean[] mHasMin;
+    private final double[] mMinTemps;
+    private final boolean[] mHasMax;
+    private final double[] mMaxTemps;
+    private final int[] mWeatherIds;
+    private final String[] mDescriptions;
+
+    private ForecastDelta(String locationSetting, int size) {
+        mLocationSetting = locationSetting;
+        mSize = size;
+        mDates = new long[size];
+        mHasMin = new boolean[size];
+        mMinTemps = new double[size];
+        mHasMax = new boolean[size];
+        mMaxTemps = new double[size];
+        mWeatherIds = new int[size];
+        mDescriptions = new String[size];
+    }
+
+    /**
+     * Reads and validates a delta.  Nothing is written until {@link #apply(Context)}.
+     *
+     * @param message the data of the push message
+     * @return the delta
+     * @throws JSONException if the message is not a delta this version understands, or holds a
+     * value that cannot be right
+     */
+    public static ForecastDelta parse(JSONObject message) throws JSONException {
+        int version = message.getInt(DELTA_VERSION);
+        if (version != VERSION) {
+            throw new JSONException("Unsupported forecast delta version " + version);
+        }
+        String locationSetting = message.getString(DELTA_LOCATION);
+        if (TextUtils.isEmpty(locationSetting)) {
+            throw new JSONException("Forecast delta names no location");
+        }
+        JSONArray days = message.getJSONArray(DELTA_DAYS);
+        if (days.length() == 0 || days.length() > MAX_DAYS) {
+            throw new JSONException("Forecast delta holds " + days.length() + " days");
+        }
+
+        long firstDay = SunshineSyncAdapter.getNormalizedDay(0);
+        long lastDay = SunshineSyncAdapter.getNormalizedDay(MAX_DAYS - 1);
+        Time time = new Time();
+        ForecastDelta delta = new ForecastDelta(locationSetting, days.length());
+        for (int i = 0; i < days.length(); i++) {
+            JSONObject day = days.getJSONObject(i);
+            long date = WeatherContract.normalizeDate(day.getLong(DELTA_TIME) * 1000, time);
+            if (date < firstDay || date > lastDay) {
+                throw new JSONException("Forecast delta day " + i + " is out of range");
+            }
+            delta.mDates[i] = date;
+
+            if (day.has(DELTA_MIN)) {
+                delta.mHasMin[i] = true;
+                delta.mMinTemps[i] = checkTemperature(day.getDouble(DELTA_MIN), i);
+            }
+            if (day.has(DELTA_MAX)) {
+                delta.mHasMax[i] = true;
+                delta.mMaxTemps[i] = checkTemperature(day.getDouble(DELTA_MAX), i);
+            }
+            if (day.has(DELTA_WEATHER_ID) != day.has(DELTA_DESCRIPTION)) {
+                throw new JSONException("Forecast delta day " + i + " has half its weather");
+            }
+            if (day.has(DELTA_WEATHER_ID)) {
+                int weatherId = day.getInt(DELTA_WEATHER_ID);
+                if (weatherId < MIN_WEATHER_ID || weatherId > MAX_WEATHER_ID) {
+                    throw new JSONException("Forecast delta day " + i + " has weather " + weatherId);
+                }
+                delta.mWeatherIds[i] = weatherId;
+                delta.mDescriptions[i] = day.getString(DELTA_DESCRIPTION);
+            } else if (!delta.mHasMin[i] && !delta.mHasMax[i]) {
+                throw new JSONException("Forecast delta day " + i + " changes nothing");
+            }
+        }
+        return delta;
+    }
+
+    private static double checkTemperature(double temperature, int i) throws JSONException {
+        if (Double.isNaN(temperature) || temperature < MIN_PLAUSIBLE_TEMP
+                || temperature > MAX_PLAUSIBLE_TEMP) {
+            throw new JSONException("Forecast delta day " + i + " has temperature " + temperature);
+        }
+        return temperature;
+    }
+
+    /**
+     * Patches the stored days of the location through the same batched write the sync uses,
+     * then brings the widgets, Muzei and the watch up to date if the preferred location
+     * changed.  A delta for a location we do not follow is dropped.  This function should not
+     * be called from the UI thread.
+     *
+     * @param context Context used to reach the provider
+     * @return the number of days written
+     */
+    public int apply(Context context) {
+        long locationId = findLocation(context);
+        if (locationId == LocationIdCache.NO_ID) {
+            Log.d(LOG_TAG, "Dropped forecast delta for unknown location " + mLocationSetting);
+            return 0;
+        }
+
+        long firstDate = mDates[0];
+        long lastDate = mDates[0];
+        for (int i = 1; i < mSize; i++) {
+            firstDate = Math.min(firstDate, mDates[i]);
+            lastDate = Math.max(lastDate, mDates[i]);
+        }
+        Cursor storedCursor = context.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                SunshineSyncAdapter.DAY_PROJECTION,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                        + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND "
+                        + WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[]{Long.toString(locationId), Long.toString(firstDate),
+                        Long.toString(lastDate)},
+                null);
+
+        WeatherBatch patchedDays = new WeatherBatch(mSize);
+        boolean[] found = new boolean[mSize];
+        while (storedCursor.moveToNext()) {
+            long storedDate = storedCursor.getLong(SunshineSyncAdapter.INDEX_DAY_DATE);
+            for (int i = 0; i < mSize; i++) {
+                if (mDates[i] == storedDate) {
+                    found[i] = true;
+                    patch(i, storedCursor, patchedDays);
+                }
+            }
+        }
+        storedCursor.close();
+
+        boolean missingDays = false;
+        for (boolean dayFound : found) {
+            missingDays |= !dayFound;
+        }
+        if (missingDays) {
+            // Fill in the days we could not patch the usual way
+            SyncRequestCoordinator.getInstance(context).requestLocationSync(
+                    SyncRequestCoordinator.REASON_GCM, Collections.singleton(mLocationSetting));
+        }
+
+        int written = patchedDays.size();
+        if (written > 0) {
+            SunshineSyncAdapter.insertDays(context, mLocationSetting, locationId, patchedDays);
+            if (mLocationSetting.equals(Utility.getPreferredLocation(context))) {
+                SunshineSyncAdapter.notifyForecastPatched(context);
+            }
+        }
+        Log.d(LOG_TAG, "Applied forecast delta for " + mLocationSetting + ", " + written
+                + " of " + mSize + " days changed");
+        return written;
+    }
+
+    /**
+     * Adds the stored day, with the delta's values laid over it, to the batch, unless that
+     * changes nothing or would leave the day colder at its high than at its low.
+     */
+    private void patch(int i, Cursor stored, WeatherBatch patchedDays) {
+        int storedWeatherId = stored.getInt(SunshineSyncAdapter.INDEX_DAY_WEATHER_ID);
+        String storedDescription = stored.getString(SunshineSyncAdapter.INDEX_DAY_SHORT_DESC);
+        double storedMin = stored.getDouble(SunshineSyncAdapter.INDEX_DAY_MIN_TEMP);
+        double storedMax = stored.getDouble(SunshineSyncAdapter.INDEX_DAY_MAX_TEMP);
+
+        int weatherId = mDescriptions[i] != null ? mWeatherIds[i] : storedWeatherId;
+        String description = mDescriptions[i] != null ? mDescriptions[i] : storedDescription;
+        double min = mHasMin[i] ? mMinTemps[i] : storedMin;
+        double max = mHasMax[i] ? mMaxTemps[i] : storedMax;
+        if (min > max) {
+            Log.d(LOG_TAG, "Skipped forecast delta day with low " + min + " above high " + max);
+            return;
+        }
+        if (weatherId == storedWeatherId && TextUtils.equals(description, storedDescription)
+                && min == storedMin && max == storedMax) {
+            return;
+        }
+        patchedDays.add(mDates[i], weatherId, description, min, max,
+                stored.getDouble(SunshineSyncAdapter.INDEX_DAY_HUMIDITY),
+                stored.getDouble(SunshineSyncAdapter.INDEX_DAY_PRESSURE),
+                stored.getDouble(SunshineSyncAdapter.INDEX_DAY_WIND_SPEED),
+                stored.getDouble(SunshineSyncAdapter.INDEX_DAY_DEGREES));
+    }
+
+    /**
+     * @return the row ID of the location, or {@link LocationIdCache#NO_ID} if it has no row
+     */
+    private long findLocation(Context context) {
+        long locationId = LocationIdCache.get(mLocationSetting);
+        if (locationId != LocationIdCache.NO_ID) {
+            return locationId;
+        }
+        Cursor locationCursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{mLocationSetting},
+                null);
+        if (locationCursor.moveToFirst()) {
+            locationId = locationCursor.getLong(0);
+        }
+        locationCursor.close();
+        return locationId;
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherBatch;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+
+/**
+ * Pulls the OpenWeatherMap daily forecast straight off the response stream.
+ *
+ * The body is never held as a String or turned into a JSONObject tree; each day is appended
+ * to a {@link WeatherBatch} as soon as its tokens have been read, so the days cost a few
+ * primitive arrays plus the reader's buffer no matter how many are requested.  Group
+ * responses, which carry the current conditions of several cities, and the 3-hourly forecast
+ * are read the same way.
+ */
+class ForecastParser {
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_CITY_ID = "id";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // Current conditions, as returned by the group endpoint
+    private static final String OWM_CURRENT_MAIN = "main";
+    private static final String OWM_CURRENT_TEMP = "temp";
+    private static final String OWM_CURRENT_WIND = "wind";
+
+    // Each step of the 3-hourly forecast reads like current conditions, plus its time
+    private static final String OWM_TIME = "dt";
+
+    // Every day must carry all of these before it is turned into a row
+    private static final int SEEN_PRESSURE = 1;
+    private static final int SEEN_HUMIDITY = 1 << 1;
+    private static final int SEEN_WIND_SPEED = 1 << 2;
+    private static final int SEEN_WIND_DIRECTION = 1 << 3;
+    private static final int SEEN_MAX = 1 << 4;
+    private static final int SEEN_MIN = 1 << 5;
+    private static final int SEEN_DESCRIPTION = 1 << 6;
+    private static final int SEEN_WEATHER_ID = 1 << 7;
+    private static final int SEEN_ALL_DAY_FIELDS = (1 << 8) - 1;
+
+    /**
+     * What was read from one forecast response.  The rows in {@link #days} and {@link #hours}
+     * do not carry a location key yet, since the location row may not exist until the city has
+     * been read.
+     */
+    static final class Forecast {
+        int code = HttpURLConnection.HTTP_OK;
+        boolean hasCity;
+        long cityId;
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+        final WeatherBatch days = new WeatherBatch();
+        // Only filled in from a 3-hourly forecast
+        final ArrayList<ContentValues> hours = new ArrayList<ContentValues>();
+    }
+
+    /**
+     * The current conditions of one city, as read from a group response.
+     */
+    static final class Conditions {
+        long cityId;
+        // Seconds since the epoch; only set for a step of the 3-hourly forecast
+        long time;
+        int weatherId;
+        String description;
+        double temperature;
+        double pressure;
+        int humidity;
+        double windSpeed;
+        double windDirection;
+    }
+
+    private final Time mDayTime;
+    private final int mJulianStartDay;
+
+    /**
+     * @param dayTime Time used to turn the position of a day in the list into a date
+     * @param julianStartDay the julian day of the first entry in the list
+     */
+    ForecastParser(Time dayTime, int julianStartDay) {
+        mDayTime = dayTime;
+        mJulianStartDay = julianStartDay;
+    }
+
+    /**
+     * Reads the forecast from the stream.  The stream is consumed but not closed.
+     *
+     * @throws JSONException if the payload is not the forecast we expect
+     * @throws IOException if the stream could not be read
+     */
+    Forecast parse(InputStream in) throws JSONException, IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        Forecast forecast = new Forecast();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    forecast.code = reader.nextInt();
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, forecast);
+                } else if (OWM_LIST.equals(name)) {
+                    readDays(reader, forecast);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+        return forecast;
+    }
+
+    /**
+     * Reads a response to its end.  The parsers stop at the closing brace; draining whatever
+     * trails it makes a digest cover the whole body, and lets a caching transport keep it.
+     */
+    static void drain(InputStream in) throws IOException {
+        byte[] trailing = new byte[64];
+        while (in.read(trailing) != -1) {
+            // keep reading
+        }
+    }
+
+    /**
+     * Reads the current conditions of every city in a group response.  The stream is consumed
+     * but not closed.
+     *
+     * @throws JSONException if the payload is not the group response we expect
+     * @throws IOException if the stream could not be read
+     */
+    static ArrayList<Conditions> parseGroup(InputStream in) throws JSONException, IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        ArrayList<Conditions> cities = new ArrayList<Conditions>();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (OWM_LIST.equals(reader.nextName())) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        cities.add(readConditions(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+        return cities;
+    }
+
+    /**
+     * Reads a 3-hourly forecast from the stream.  The stream is consumed but not closed.
+     *
+     * @return the forecast, with its steps in {@link Forecast#hours}
+     * @throws JSONException if the payload is not the forecast we expect
+     * @throws IOException if the stream could not be read
+     */
+    static Forecast parseHourly(InputStream in) throws JSONException, IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        Forecast forecast = new Forecast();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    forecast.code = reader.nextInt();
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, forecast);
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        forecast.hours.add(toHourlyValues(readConditions(reader)));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+        return forecast;
+    }
+
+    private static ContentValues toHourlyValues(Conditions conditions) throws JSONException {
+        if (conditions.time == 0 || conditions.description == null) {
+            throw new JSONException("Incomplete 3-hourly forecast step");
+        }
+        ContentValues hourlyValues = new ContentValues();
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_TIME, conditions.time * 1000);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, conditions.weatherId);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_SHORT_DESC, conditions.description);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_TEMP, conditions.temperature);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, conditions.humidity);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE, conditions.pressure);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED, conditions.windSpeed);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_DEGREES, conditions.windDirection);
+        return hourlyValues;
+    }
+
+    private static Conditions readConditions(JsonReader reader) throws IOException {
+        Conditions conditions = new Conditions();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_ID.equals(name)) {
+                conditions.cityId = reader.nextLong();
+            } else if (OWM_TIME.equals(name)) {
+                conditions.time = reader.nextLong();
+            } else if (OWM_CURRENT_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_CURRENT_TEMP.equals(mainName)) {
+                        conditions.temperature = reader.nextDouble();
+                    } else if (OWM_PRESSURE.equals(mainName)) {
+                        conditions.pressure = reader.nextDouble();
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        conditions.humidity = reader.nextInt();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_CURRENT_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        conditions.windSpeed = reader.nextDouble();
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        conditions.windDirection = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                reader.beginArray();
+                if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            conditions.description = reader.nextString();
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            conditions.weatherId = reader.nextInt();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return conditions;
+    }
+
+    private static void readCity(JsonReader reader, Forecast forecast) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                forecast.cityName = reader.nextString();
+            } else if (OWM_CITY_ID.equals(name)) {
+                forecast.cityId = reader.nextLong();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        forecast.cityLatitude = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        forecast.cityLongitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        forecast.hasCity = forecast.cityName != null;
+    }
+
+    private void readDays(JsonReader reader, Forecast forecast) throws JSONException, IOException {
+        reader.beginArray();
+        int i = 0;
+        while (reader.hasNext()) {
+            readDay(reader, i++, forecast.days);
+        }
+        reader.endArray();
+    }
+
+    private void readDay(JsonReader reader, int i, WeatherBatch days)
+            throws JSONException, IOException {
+        double pressure = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+        double high = 0;
+        double low = 0;
+        String description = null;
+        int weatherId = 0;
+        int seen = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                pressure = reader.nextDouble();
+                seen |= SEEN_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                humidity = reader.nextInt();
+                seen |= SEEN_HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                windSpeed = reader.nextDouble();
+                seen |= SEEN_WIND_SPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                windDirection = reader.nextDouble();
+                seen |= SEEN_WIND_DIRECTION;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                // Temperatures are in a child object called "temp".  Try not to name variables
+                // "temp" when working with temperature.  It confuses everybody.
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        high = reader.nextDouble();
+                        seen |= SEEN_MAX;
+                    } else if (OWM_MIN.equals(tempName)) {
+                        low = reader.nextDouble();
+                        seen |= SEEN_MIN;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            description = reader.nextString();
+                            seen |= SEEN_DESCRIPTION;
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            weatherId = reader.nextInt();
+                            seen |= SEEN_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (seen != SEEN_ALL_DAY_FIELDS) {
+            throw new JSONException("Incomplete forecast for day " + i);
+        }
+
+        // Cheating to convert this to UTC time, which is what we want anyhow
+        long dateTime = mDayTime.setJulianDay(mJulianStartDay + i);
+
+        days.add(dateTime, weatherId, description, low, high, humidity, pressure, windSpeed,
+                windDirection);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * The network underneath the sync.  Every request the sync makes to OpenWeatherMap goes through
+ * one of these, so the connections can be shared across locations and the sync can run offline
+ * against recorded responses.
+ */
+public interface ForecastTransport {
+
+    String HEADER_ETAG = "ETag";
+    String HEADER_LAST_MODIFIED = "Last-Modified";
+    String HEADER_IF_NONE_MATCH = "If-None-Match";
+    String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    // Sent with CACHE_CONTROL_NO_CACHE when a cached answer must not be used without asking
+    // the server
+    String HEADER_CACHE_CONTROL = "Cache-Control";
+    String CACHE_CONTROL_NO_CACHE = "no-cache";
+    // Set on a response served from a cache because the server could not be reached
+    String HEADER_WARNING = "Warning";
+    // Set to X_CACHE_HIT on a response answered from a cache rather than by the server, fresh
+    // or stale alike
+    String HEADER_X_CACHE = "X-Cache";
+    String X_CACHE_HIT = "HIT";
+
+    /**
+     * Performs a GET request.  The caller must close the response.
+     *
+     * @param url the full request URL
+     * @param headers extra request headers, may be empty
+     * @return the response, with a 2xx or 304 status
+     * @throws IOException if the request failed or the server answered with any other status
+     */
+    Response get(String url, Map<String, String> headers) throws IOException;
+
+    /**
+     * A response to a {@link #get} request.
+     */
+    abstract class Response implements Closeable {
+
+        /**
+         * @return the HTTP status code
+         */
+        public abstract int code();
+
+        /**
+         * @param name a header name, matched case-insensitively
+         * @return the value of the header, or null if the response has none
+         */
+        public abstract String header(String name);
+
+        /**
+         * @return the decoded response body; empty for a 304
+         */
+        public abstract InputStream body() throws IOException;
+
+        /**
+         * Marks the body as a good answer, once the caller has read and parsed it.  OWM reports
+         * some errors as a 200 with the error code in the body, so a transport that keeps
+         * responses only keeps the ones it was told are good.  Does nothing by default.
+         */
+        public void commit() {
+        }
+
+        /**
+         * @return nanoseconds spent resolving the host, or 0 if none or unknown
+         */
+        public long dnsNanos() {
+            return 0;
+        }
+
+        /**
+         * @return nanoseconds spent opening the connection, TLS included, or 0 if a pooled
+         * connection was reused or the time is unknown
+         */
+        public long connectNanos() {
+            return 0;
+        }
+
+        /**
+         * @return nanoseconds from sending the request to the first byte of the response, or 0
+         * if unknown
+         */
+        public long ttfbNanos() {
+            return 0;
+        }
+    }
+}
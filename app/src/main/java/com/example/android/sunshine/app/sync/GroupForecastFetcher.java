@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Fetch strategy that refreshes several cities with a single request to OpenWeatherMap's group
+ * endpoint.
+ *
+ * The group endpoint only serves current conditions, not daily forecasts, so it is used to keep
+ * today's row of the saved locations fresh between their full forecast fetches.  Only cities
+ * whose OWM id we have already resolved can be asked for this way.
+ */
+class GroupForecastFetcher {
+
+    // OWM refuses group requests for more than 20 cities
+    static final int MAX_CITIES_PER_REQUEST = 20;
+
+    private GroupForecastFetcher() {
+    }
+
+    /**
+     * What one group request brought back.
+     */
+    static final class Group {
+        // The conditions of each city the server knew about
+        final ArrayList<ForecastParser.Conditions> conditions;
+        // true when the response came from the cache, so the server wasn't asked at all
+        final boolean cached;
+
+        Group(ArrayList<ForecastParser.Conditions> conditions, boolean cached) {
+            this.conditions = conditions;
+            this.cached = cached;
+        }
+    }
+
+    /**
+     * Fetches the current conditions of up to {@link #MAX_CITIES_PER_REQUEST} cities in one
+     * request.
+     *
+     * @param transport the transport to make the request with
+     * @param cityIds the OWM ids of the cities
+     * @param metrics where the fetch and parse stages are recorded
+     * @return the conditions of each city the server knew about
+     * @throws JSONException if the payload is not the group response we expect
+     * @throws IOException if the request failed
+     */
+    static Group fetch(ForecastTransport transport, long[] cityIds, SyncStageMetrics metrics)
+            throws JSONException, IOException {
+        if (cityIds.length > MAX_CITIES_PER_REQUEST) {
+            throw new IllegalArgumentException("At most " + MAX_CITIES_PER_REQUEST
+                    + " cities per request, got " + cityIds.length);
+        }
+
+        final String GROUP_BASE_URL =
+                "http://api.openweathermap.org/data/2.5/group?";
+        final String ID_PARAM = "id";
+        final String UNITS_PARAM = "units";
+        final String APPID_PARAM = "APPID";
+
+        Long[] ids = new Long[cityIds.length];
+        for (int i = 0; i < cityIds.length; i++) {
+            ids[i] = cityIds[i];
+        }
+
+        Uri builtUri = Uri.parse(GROUP_BASE_URL).buildUpon()
+                .appendQueryParameter(ID_PARAM, TextUtils.join(",", ids))
+                .appendQueryParameter(UNITS_PARAM, "metric")
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        long start = SyncStageMetrics.start();
+        ForecastTransport.Response response =
+                transport.get(builtUri.toString(), Collections.<String, String>emptyMap());
+        metrics.record(SyncStageMetrics.STAGE_FETCH, start, 0);
+        metrics.recordNetwork(response);
+        try {
+            if (response.header(ForecastTransport.HEADER_WARNING) != null) {
+                // Old current conditions are no better than the ones we already stored
+                throw new IOException("No fresh group response");
+            }
+            start = SyncStageMetrics.start();
+            InputStream body = metrics.countBytes(SyncStageMetrics.STAGE_FETCH, response.body());
+            ArrayList<ForecastParser.Conditions> conditions = ForecastParser.parseGroup(body);
+            // The response cache only keeps a body that was read to the end
+            ForecastParser.drain(body);
+            metrics.record(SyncStageMetrics.STAGE_PARSE, start, conditions.size());
+            if (!conditions.isEmpty()) {
+                // An error body carries no list, so this one is worth keeping
+                response.commit();
+            }
+            return new Group(conditions, ForecastTransport.X_CACHE_HIT.equals(
+                    response.header(ForecastTransport.HEADER_X_CACHE)));
+        } finally {
+            try {
+                response.close();
+            } catch (IOException e) {
+                // Nothing left to read from it anyway
+            }
+        }
+    }
+}
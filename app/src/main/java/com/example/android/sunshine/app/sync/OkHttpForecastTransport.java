@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+
+/**
+ * {@link ForecastTransport} backed by a single OkHttp client.
+ *
+ * The client keeps a pool of idle connections, so the requests of a multi-location sync reuse
+ * each other's connections instead of opening one per location, and it negotiates HTTP/2 where
+ * the server offers it over TLS.  OkHttp asks for gzip and inflates the body itself, as long as
+ * the caller does not set Accept-Encoding.
+ */
+class OkHttpForecastTransport implements ForecastTransport {
+
+    private static final long CONNECT_TIMEOUT_SECONDS = 15;
+    private static final long READ_TIMEOUT_SECONDS = 20;
+
+    // One idle connection per fetch worker, kept long enough to span a sync
+    private static final int MAX_IDLE_CONNECTIONS = SunshineSyncAdapter.MAX_PARALLEL_FETCHES;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private final OkHttpClient mClient;
+
+    OkHttpForecastTransport() {
+        mClient = new OkHttpClient.Builder()
+                .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS,
+                        KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .build();
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        Request.Builder request = new Request.Builder().url(url);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.header(header.getKey(), header.getValue());
+        }
+        // A client derived per call shares the pool and dispatcher, and lets each call carry
+        // its own timings
+        final CallTimings timings = new CallTimings();
+        final okhttp3.Response response = mClient.newBuilder().eventListener(timings).build()
+                .newCall(request.build()).execute();
+        if (!response.isSuccessful() && response.code() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.close();
+            throw new IOException("Unexpected HTTP " + response.code() + " for " + url);
+        }
+        return new Response() {
+            @Override
+            public int code() {
+                return response.code();
+            }
+
+            @Override
+            public String header(String name) {
+                return response.header(name);
+            }
+
+            @Override
+            public InputStream body() {
+                return response.body().byteStream();
+            }
+
+            @Override
+            public long dnsNanos() {
+                return timings.mDnsNanos;
+            }
+
+            @Override
+            public long connectNanos() {
+                return timings.mConnectNanos;
+            }
+
+            @Override
+            public long ttfbNanos() {
+                return timings.mTtfbNanos;
+            }
+
+            @Override
+            public void close() {
+                response.close();
+            }
+        };
+    }
+
+    /**
+     * Times the phases of one call up to its response headers.
+     */
+    private static final class CallTimings extends EventListener {
+        long mDnsNanos;
+        long mConnectNanos;
+        long mTtfbNanos;
+
+        private long mDnsStart;
+        private long mConnectStart;
+        private long mRequestSent;
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            mDnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            mDnsNanos += System.nanoTime() - mDnsStart;
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            mConnectStart = System.nanoTime();
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                               Protocol protocol) {
+            mConnectNanos += System.nanoTime() - mConnectStart;
+        }
+
+        @Override
+        public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                                  Protocol protocol, IOException ioe) {
+            mConnectNanos += System.nanoTime() - mConnectStart;
+        }
+
+        @Override
+        public void requestHeadersEnd(Call call, Request request) {
+            mRequestSent = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            mTtfbNanos += System.nanoTime() - mRequestSent;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SyncResult;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.example.android.sunshine.app.R;
+
+/**
+ * Runs the periodic sync as a JobScheduler job on API 21+.
+ *
+ * As a job the sync can be batched with the wakeups of other apps and held back until a network
+ * is up.  Besides the periodic job, whose interval comes from {@link SyncSchedulePolicy}, a
+ * stretched schedule gets a top-up job at the base interval that only runs while the device is
+ * charging on an unmetered network, where a sync costs the user nothing.  Both run the same
+ * pipeline as the sync adapter, on the same adapter instance.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class SunshineJobService extends JobService {
+    private static final String LOG_TAG = SunshineJobService.class.getSimpleName();
+
+    static final int JOB_ID_PERIODIC_SYNC = 1;
+    static final int JOB_ID_TOP_UP_SYNC = 2;
+
+    // The sync thread of each running job, by job id
+    private final SparseArray<Thread> mSyncThreads = new SparseArray<Thread>();
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        Thread syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Context context = getApplicationContext();
+                SyncResult syncResult = new SyncResult();
+                // No sync reasons in the extras, so it is logged as a periodic sync
+                SunshineSyncService.getSyncAdapter(context).onPerformSync(
+                        SunshineSyncAdapter.getSyncAccount(context),
+                        new Bundle(),
+                        context.getString(R.string.content_authority),
+                        null,
+                        syncResult);
+                synchronized (mSyncThreads) {
+                    mSyncThreads.remove(params.getJobId());
+                }
+                // A periodic job comes back on its own schedule, and failures are already
+                // backed off by the circuit breaker
+                jobFinished(params, false);
+            }
+        }, LOG_TAG);
+        synchronized (mSyncThreads) {
+            mSyncThreads.put(params.getJobId(), syncThread);
+        }
+        syncThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Thread syncThread;
+        synchronized (mSyncThreads) {
+            syncThread = mSyncThreads.get(params.getJobId());
+            mSyncThreads.remove(params.getJobId());
+        }
+        if (syncThread != null) {
+            Log.d(LOG_TAG, "Constraints lost, stopping job " + params.getJobId());
+            syncThread.interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Schedules the sync jobs, replacing any scheduled before.
+     *
+     * @param context Context used to reach the job scheduler
+     * @param syncInterval the periodic sync interval, in seconds
+     */
+    static void schedule(Context context, int syncInterval) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        ComponentName service = new ComponentName(context, SunshineJobService.class);
+
+        scheduler.schedule(new JobInfo.Builder(JOB_ID_PERIODIC_SYNC, service)
+                .setPeriodic(syncInterval * 1000L)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setPersisted(true)
+                .build());
+
+        if (syncInterval > SunshineSyncAdapter.SYNC_INTERVAL) {
+            scheduler.schedule(new JobInfo.Builder(JOB_ID_TOP_UP_SYNC, service)
+                    .setPeriodic(SunshineSyncAdapter.SYNC_INTERVAL * 1000L)
+                    .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                    .setRequiresCharging(true)
+                    .setPersisted(true)
+                    .build());
+        } else {
+            scheduler.cancel(JOB_ID_TOP_UP_SYNC);
+        }
+        Log.d(LOG_TAG, "Sync jobs scheduled every " + syncInterval + "s");
+    }
+}
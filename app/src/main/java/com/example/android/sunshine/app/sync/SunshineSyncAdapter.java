@@ -3,15 +3,17 @@ package com.example.android.sunshine.app.sync;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
@@ -22,12 +24,15 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
+import android.support.v4.util.LongSparseArray;
+import android.text.TextUtils;
 import android.text.format.Time;
 import android.util.Log;
 
@@ -36,10 +41,12 @@ import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherBatch;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.DataApi;
@@ -47,25 +54,39 @@ import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
         implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
-    public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
+    public static final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
     // Interval at which to sync with the weather, in seconds.
@@ -73,10 +94,63 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    // 3-hourly points older than this are swept from the hourly table
+    private static final long HOURLY_RETENTION_MILLIS = DAY_IN_MILLIS;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
+    // Upper bound on the forecast fetches a sync runs at once
+    static final int MAX_PARALLEL_FETCHES = 3;
+
+    // Sync extra asking for just the preferred location.  Without it every saved location is
+    // refreshed, so switching between them never has to wait on the network.
+    public static final String EXTRA_PREFERRED_LOCATION_ONLY = "preferred_location_only";
+
+    // How long each post-sync consumer may run.  The notification may have to load remote art
+    // for its large icon, and the watch update encodes a PNG.
+    private static final long FAN_OUT_BROADCAST_TIMEOUT_MILLIS = 1000 * 5;
+    private static final long FAN_OUT_WATCH_TIMEOUT_MILLIS = 1000 * 10;
+    private static final long FAN_OUT_NOTIFICATION_TIMEOUT_MILLIS = 1000 * 15;
+
+    // Sync extra carrying the SyncRequestCoordinator reasons behind an immediate sync
+    public static final String EXTRA_SYNC_REASONS = "sync_reasons";
+
+    // Sync extra naming the only locations to refresh, one location setting per line.  Sync
+    // extras cannot hold arrays.  The locations are treated as changed upstream, so they get a
+    // full fetch that goes past the response cache.
+    public static final String EXTRA_SYNC_LOCATIONS = "sync_locations";
+    private static final String SYNC_LOCATIONS_SEPARATOR = "\n";
+
+    // A full fetch stores 14 days.  Saved locations holding at least this many of them from
+    // today on only get today's row refreshed, in batched group requests; below it they get a
+    // full forecast again.
+    private static final int GROUP_FETCH_MIN_STORED_DAYS = 12;
+    // The later days still move as the forecast is revised, so a saved location whose last
+    // full forecast is older than this gets a full one again however many days it holds.
+    private static final long FULL_FETCH_MAX_AGE_MILLIS = 4 * SYNC_INTERVAL * 1000L;
+
+    private static volatile Account sSyncAccount;
+
+    // Shared by every sync, so its connection pool and response cache outlive any single one
+    private static ForecastTransport sTransport;
+    private static final String RESPONSE_CACHE_DIRECTORY = "forecast_responses";
+
     private GoogleApiClient mGoogleApiClient;
 
+    private static final ResultCallback<DataApi.DataItemResult> sWearResultCallback =
+            new ResultCallback<DataApi.DataItemResult>() {
+                @Override
+                public void onResult(@NonNull DataApi.DataItemResult dataItemResult) {
+                    if (!dataItemResult.getStatus().isSuccess()) {
+                        Log.e(LOG_TAG, "Failed to send data to wear");
+                    } else {
+                        Log.e(LOG_TAG, "Sent data to wear");
+                    }
+                }
+            };
+
+    // Runs the post-sync consumers off the sync thread
+    private final FanOutDispatcher mFanOut = new FanOutDispatcher();
+
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
             WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
@@ -90,6 +164,58 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
     private static final int INDEX_MIN_TEMP = 2;
     private static final int INDEX_SHORT_DESC = 3;
 
+    private static final String[] VALIDATOR_PROJECTION = new String[] {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_ID,
+            WeatherContract.LocationEntry.COLUMN_ETAG,
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED,
+            WeatherContract.LocationEntry.COLUMN_PAYLOAD_DIGEST,
+            WeatherContract.LocationEntry.COLUMN_HOURLY_ETAG,
+            WeatherContract.LocationEntry.COLUMN_HOURLY_LAST_MODIFIED,
+            WeatherContract.LocationEntry.COLUMN_HOURLY_PAYLOAD_DIGEST,
+            WeatherContract.LocationEntry.COLUMN_LAST_FULL_FETCH
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_VALIDATOR_LOCATION_ID = 0;
+    private static final int INDEX_VALIDATOR_LOCATION_SETTING = 1;
+    private static final int INDEX_VALIDATOR_CITY_ID = 2;
+    private static final int INDEX_VALIDATOR_ETAG = 3;
+    private static final int INDEX_VALIDATOR_LAST_MODIFIED = 4;
+    private static final int INDEX_VALIDATOR_PAYLOAD_DIGEST = 5;
+    private static final int INDEX_VALIDATOR_HOURLY_ETAG = 6;
+    private static final int INDEX_VALIDATOR_HOURLY_LAST_MODIFIED = 7;
+    private static final int INDEX_VALIDATOR_HOURLY_PAYLOAD_DIGEST = 8;
+    private static final int INDEX_VALIDATOR_LAST_FULL_FETCH = 9;
+
+    // Every column a parsed day is compared on
+    static final String[] DAY_PROJECTION = new String[] {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    // these indices must match the projection
+    static final int INDEX_DAY_DATE = 0;
+    static final int INDEX_DAY_WEATHER_ID = 1;
+    static final int INDEX_DAY_SHORT_DESC = 2;
+    static final int INDEX_DAY_MIN_TEMP = 3;
+    static final int INDEX_DAY_MAX_TEMP = 4;
+    static final int INDEX_DAY_HUMIDITY = 5;
+    static final int INDEX_DAY_PRESSURE = 6;
+    static final int INDEX_DAY_WIND_SPEED = 7;
+    static final int INDEX_DAY_DEGREES = 8;
+
+    private static final String PAYLOAD_DIGEST_ALGORITHM = "SHA-1";
+
+
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
     public @interface LocationStatus {}
@@ -126,18 +252,558 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
         mGoogleApiClient.connect();
     }
 
+    // Both the sync manager and SunshineJobService drive this one instance, so syncs are taken
+    // one at a time
     @Override
-    public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
-        Log.d(LOG_TAG, "Starting sync");
-        String locationQuery = Utility.getPreferredLocation(getContext());
+    public synchronized void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
+        int trigger = extras.getInt(EXTRA_SYNC_REASONS, 0);
+        Log.d(LOG_TAG, "Starting sync, reasons 0x" + Integer.toHexString(trigger));
+        SyncStageMetrics metrics = new SyncStageMetrics();
+        long retryDelay = SyncCircuitBreaker.getRetryDelayMillis(getContext());
+        if (retryDelay > 0) {
+            // The server failed us recently; stay away until the backoff has run out
+            Log.d(LOG_TAG, "Backing off, sync skipped");
+            // delayUntil is a point in time, in seconds since the epoch
+            syncResult.delayUntil = (System.currentTimeMillis() + retryDelay) / 1000;
+            logSync(trigger, WeatherContract.SyncLogEntry.OUTCOME_BACKED_OFF, 0, metrics);
+            return;
+        }
+        final String preferredLocation = Utility.getPreferredLocation(getContext());
+        String targetedLocations = extras.getString(EXTRA_SYNC_LOCATIONS);
+        Set<String> onlyLocations = null;
+        if (targetedLocations != null) {
+            onlyLocations = new HashSet<String>(
+                    Arrays.asList(TextUtils.split(targetedLocations, SYNC_LOCATIONS_SEPARATOR)));
+        } else if (extras.getBoolean(EXTRA_PREFERRED_LOCATION_ONLY, false)) {
+            onlyLocations = Collections.singleton(preferredLocation);
+        }
+
+        Collection<FollowedLocation> followedLocations =
+                getFollowedLocations(preferredLocation, onlyLocations);
+        if (targetedLocations != null) {
+            if (followedLocations.isEmpty()) {
+                Log.d(LOG_TAG, "None of the requested locations are followed, sync skipped");
+                return;
+            }
+            for (FollowedLocation location : followedLocations) {
+                location.invalidated = true;
+            }
+        }
+
+        // Saved locations that still hold most of a recent forecast only need today's row
+        // refreshed, and those we can batch into group requests.  Everything else gets a
+        // request of its own.
+        List<FollowedLocation> fullFetches = new ArrayList<FollowedLocation>();
+        List<FollowedLocation> groupFetches = new ArrayList<FollowedLocation>();
+        long now = System.currentTimeMillis();
+        for (FollowedLocation location : followedLocations) {
+            if (!location.locationSetting.equals(preferredLocation) && !location.invalidated
+                    && location.cityId > 0
+                    && location.storedDays >= GROUP_FETCH_MIN_STORED_DAYS
+                    && now - location.lastFullFetch < FULL_FETCH_MAX_AGE_MILLIS) {
+                groupFetches.add(location);
+            } else {
+                fullFetches.add(location);
+            }
+        }
+
+        // Fetch and parse run on a small pool, so the network and parsing work of several
+        // locations overlaps, while this thread is the only one that writes to the provider.
+        ExecutorService fetchPool = Executors.newFixedThreadPool(
+                Math.min(MAX_PARALLEL_FETCHES, followedLocations.size()));
+        SyncOutcome outcome;
+        try {
+            CompletionService<List<FetchResult>> fetches =
+                    new ExecutorCompletionService<List<FetchResult>>(fetchPool);
+            int submitted = submitFetches(fetches, preferredLocation, fullFetches, groupFetches,
+                    metrics);
+            outcome = persist(fetches, submitted, preferredLocation, syncResult, metrics);
+        } finally {
+            fetchPool.shutdownNow();
+        }
+
+        if (outcome.serverReached) {
+            SyncCircuitBreaker.recordSuccess(getContext());
+        } else if (outcome.serverDown && Utility.isNetworkAvailable(getContext())) {
+            // Only a server that fails while we are online counts against it
+            SyncCircuitBreaker.recordFailure(getContext());
+        }
+
+        fanOut(outcome, metrics);
+
+        Log.d(LOG_TAG, "Sync Complete. " + followedLocations.size() + " locations ("
+                + groupFetches.size() + " batched), " + syncResult.stats.numInserts + " Inserted");
+        Log.d(LOG_TAG, "Sync stages: " + metrics);
+
+        // Let the schedule follow how much this sync actually changed
+        long changedRows = syncResult.stats.numInserts + syncResult.stats.numUpdates;
+        boolean failed = changedRows == 0 && (syncResult.stats.numIoExceptions > 0
+                || syncResult.stats.numParseExceptions > 0);
+        SyncSchedulePolicy.onSyncFinished(getContext(), changedRows,
+                syncResult.stats.numSkippedEntries, failed);
+
+        int syncOutcome;
+        if (changedRows > 0) {
+            syncOutcome = WeatherContract.SyncLogEntry.OUTCOME_CHANGED;
+        } else if (outcome.serverReached || !outcome.serverDown) {
+            // Answered by the server, or entirely from the response cache
+            syncOutcome = WeatherContract.SyncLogEntry.OUTCOME_UNCHANGED;
+        } else {
+            syncOutcome = WeatherContract.SyncLogEntry.OUTCOME_FAILED;
+        }
+        logSync(trigger, syncOutcome, followedLocations.size(), metrics);
+    }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+    /**
+     * Helper method to record a finished sync in the sync log.
+     *
+     * @param trigger the reasons the sync was requested for, or 0 for a periodic sync
+     * @param outcome one of the {@link WeatherContract.SyncLogEntry} OUTCOME_ values
+     * @param locations how many locations the sync set out to refresh
+     * @param metrics the timings of the sync
+     */
+    private void logSync(int trigger, int outcome, int locations, SyncStageMetrics metrics) {
+        ContentValues logValues = metrics.toLogValues();
+        logValues.put(WeatherContract.SyncLogEntry.COLUMN_TRIGGER, trigger);
+        logValues.put(WeatherContract.SyncLogEntry.COLUMN_OUTCOME, outcome);
+        logValues.put(WeatherContract.SyncLogEntry.COLUMN_LOCATIONS, locations);
+        getContext().getContentResolver().insert(
+                WeatherContract.SyncLogEntry.CONTENT_URI, logValues);
+    }
+
+    /**
+     * Fetch and parse stages: queues a fetch for every location on the fetch workers, plus one
+     * for the 3-hourly forecast of the preferred location.
+     *
+     * @return how many fetch tasks were submitted; each hands back a list of
+     * {@link FetchResult}.
+     */
+    private int submitFetches(CompletionService<List<FetchResult>> fetches,
+                              String preferredLocation,
+                              List<FollowedLocation> fullFetches,
+                              List<FollowedLocation> groupFetches,
+                              final SyncStageMetrics metrics) {
+        int submitted = 0;
+        for (final FollowedLocation location : fullFetches) {
+            fetches.submit(new Callable<List<FetchResult>>() {
+                @Override
+                public List<FetchResult> call() {
+                    return Collections.singletonList(fetchForecast(location, metrics));
+                }
+            });
+            submitted++;
+            if (location.locationSetting.equals(preferredLocation)) {
+                // Only the preferred location is shown at intra-day resolution
+                fetches.submit(new Callable<List<FetchResult>>() {
+                    @Override
+                    public List<FetchResult> call() {
+                        return Collections.singletonList(fetchHourly(location, metrics));
+                    }
+                });
+                submitted++;
+            }
+        }
+        for (int start = 0; start < groupFetches.size();
+             start += GroupForecastFetcher.MAX_CITIES_PER_REQUEST) {
+            final List<FollowedLocation> batch = groupFetches.subList(start,
+                    Math.min(start + GroupForecastFetcher.MAX_CITIES_PER_REQUEST, groupFetches.size()));
+            fetches.submit(new Callable<List<FetchResult>>() {
+                @Override
+                public List<FetchResult> call() {
+                    return fetchConditions(batch, metrics);
+                }
+            });
+            submitted++;
+        }
+        return submitted;
+    }
+
+    /**
+     * Persist stage: turns each fetch result into provider operations as it comes back, adds the
+     * removal of the days that have passed, and applies the lot as one batch.  The provider runs
+     * a batch in a single transaction and announces its changes once, after the commit, so
+     * observers never see a sync half written.
+     *
+     * @return what the fan-out stage and the circuit breaker need to know about the sync
+     */
+    private SyncOutcome persist(CompletionService<List<FetchResult>> fetches, int submitted,
+                                String preferredLocation, SyncResult syncResult,
+                                SyncStageMetrics metrics) {
+        SyncOutcome outcome = new SyncOutcome();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        // From API 11 the batch goes through call(), so the days can travel as WeatherBatch
+        // arrays next to the operations instead of as a row each
+        Bundle batchExtras =
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ? new Bundle() : null;
+        // Their statuses are only set once we know whether the batch was committed
+        List<FetchResult> forecastResults = new ArrayList<FetchResult>();
+        try {
+            for (int i = 0; i < submitted; i++) {
+                List<FetchResult> results;
+                try {
+                    results = fetches.take().get();
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Error fetching forecast", e.getCause());
+                    continue;
+                }
+                for (FetchResult result : results) {
+                    if (result.status == LOCATION_STATUS_SERVER_DOWN || result.stale) {
+                        outcome.serverDown = true;
+                    } else if (!result.cached) {
+                        // A fresh cache hit says nothing about the server either way
+                        outcome.serverReached = true;
+                    }
+                    long start = SyncStageMetrics.start();
+                    long rowsBefore = syncResult.stats.numInserts + syncResult.stats.numUpdates;
+                    if (result.hourly) {
+                        // Only the app itself shows the series, so it wakes no one else
+                        outcome.hourlyCommitted |= commitHourly(result, operations);
+                    } else {
+                        forecastResults.add(result);
+                        if (commitForecast(result, syncResult, operations, batchExtras)) {
+                            outcome.committedAny = true;
+                            outcome.preferredUpdated |=
+                                    preferredLocation.equals(result.location.locationSetting);
+                        }
+                    }
+                    metrics.record(SyncStageMetrics.STAGE_PERSIST, start,
+                            syncResult.stats.numInserts + syncResult.stats.numUpdates - rowsBefore);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(LOG_TAG, "Sync cancelled");
+            Thread.currentThread().interrupt();
+        }
+
+        if (outcome.committedAny) {
+            // delete old data so we don't build up an endless history
+            operations.add(ContentProviderOperation
+                    .newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                    .withSelection(WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                            new String[] {Long.toString(getNormalizedDay(-1))})
+                    .build());
+        }
+        if (outcome.hourlyCommitted) {
+            // The hourly table is swept through its time index, so only old points are touched
+            operations.add(ContentProviderOperation
+                    .newDelete(WeatherContract.HourlyEntry.CONTENT_URI)
+                    .withSelection(WeatherContract.HourlyEntry.COLUMN_TIME + " < ?",
+                            new String[] {Long.toString(
+                                    System.currentTimeMillis() - HOURLY_RETENTION_MILLIS)})
+                    .build());
+        }
+        if (!operations.isEmpty()) {
+            long start = SyncStageMetrics.start();
+            try {
+                applyBatch(operations, batchExtras);
+                // Each result has recorded the rows it writes already; this is just the commit
+                metrics.record(SyncStageMetrics.STAGE_PERSIST, start, 0);
+            } catch (RemoteException | OperationApplicationException e) {
+                // The transaction was rolled back, so nothing of this sync reached the database
+                Log.e(LOG_TAG, "Error committing sync", e);
+                syncResult.databaseError = true;
+                outcome.committedAny = false;
+                outcome.preferredUpdated = false;
+                outcome.hourlyCommitted = false;
+                setLocationStatuses(forecastResults, false);
+                return outcome;
+            }
+        }
+        setLocationStatuses(forecastResults, true);
+        return outcome;
+    }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+    /**
+     * Sets the status of every location the sync fetched a forecast for.  A location that
+     * fetched fine but whose rows were rolled back with the batch has nothing new to show, so
+     * it is marked unknown.
+     *
+     * @param committed whether the batch holding the forecasts was applied
+     */
+    private void setLocationStatuses(List<FetchResult> results, boolean committed) {
+        for (FetchResult result : results) {
+            @LocationStatus int status = result.status;
+            if (!committed && status == LOCATION_STATUS_OK) {
+                status = LOCATION_STATUS_UNKNOWN;
+            }
+            setLocationStatus(getContext(), result.location.locationSetting, status);
+        }
+    }
+
+    /**
+     * Helper method to apply the sync's batch in one transaction.
+     *
+     * @param batchExtras the days the batch writes, keyed by WeatherEntry.getDaysKey, or null to
+     *                    apply the operations alone
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void applyBatch(ArrayList<ContentProviderOperation> operations, Bundle batchExtras)
+            throws RemoteException, OperationApplicationException {
+        if (batchExtras == null) {
+            getContext().getContentResolver()
+                    .applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            return;
+        }
+        batchExtras.putParcelableArrayList(WeatherContract.KEY_OPERATIONS, operations);
+        Bundle result = getContext().getContentResolver().call(
+                WeatherContract.BASE_CONTENT_URI, WeatherContract.METHOD_APPLY_BATCH, null,
+                batchExtras);
+        if (result == null) {
+            throw new OperationApplicationException("The sync batch was rolled back");
+        }
+    }
+
+    /**
+     * Fan-out stage: tells everything that shows the preferred location about new data.  The
+     * consumers run in parallel on {@link #mFanOut} and the sync does not wait for them, so only
+     * the time to dispatch them is recorded here.
+     */
+    private void fanOut(SyncOutcome outcome, SyncStageMetrics metrics) {
+        // The widgets, Muzei, the watch and the notification all show the preferred location
+        if (outcome.preferredUpdated) {
+            long start = SyncStageMetrics.start();
+            mFanOut.dispatch("widgets", new Runnable() {
+                @Override
+                public void run() {
+                    updateWidgets(getContext());
+                }
+            }, FAN_OUT_BROADCAST_TIMEOUT_MILLIS);
+            mFanOut.dispatch("muzei", new Runnable() {
+                @Override
+                public void run() {
+                    updateMuzei(getContext());
+                }
+            }, FAN_OUT_BROADCAST_TIMEOUT_MILLIS);
+            mFanOut.dispatch("watch", new Runnable() {
+                @Override
+                public void run() {
+                    PendingResult<DataApi.DataItemResult> sent =
+                            updateWatchFace(getContext(), mGoogleApiClient);
+                    if (sent != null) {
+                        sent.setResultCallback(sWearResultCallback);
+                    }
+                }
+            }, FAN_OUT_WATCH_TIMEOUT_MILLIS);
+            mFanOut.dispatch("notification", new Runnable() {
+                @Override
+                public void run() {
+                    notifyWeather();
+                }
+            }, FAN_OUT_NOTIFICATION_TIMEOUT_MILLIS);
+            metrics.record(SyncStageMetrics.STAGE_FAN_OUT, start, 0);
+        }
+    }
+
+    /**
+     * What the persist stage hands to the fan-out stage.
+     */
+    private static final class SyncOutcome {
+        // Forecast rows were written for some location
+        boolean committedAny;
+        // ... and the preferred location was one of them
+        boolean preferredUpdated;
+        // 3-hourly points were written, which is kept apart from the forecast rows since
+        // nothing outside the app shows them
+        boolean hourlyCommitted;
+        // Some location got an answer from the server
+        boolean serverReached;
+        // Some location could not reach the server
+        boolean serverDown;
+    }
+
+    /**
+     * A location a sync should refresh, with what we already know about it.
+     */
+    private static final class FollowedLocation {
+        final String locationSetting;
+        // -1 until the location has a row of its own
+        long locationId = -1;
+        // OWM's id for the city, or 0 if it hasn't been resolved yet
+        long cityId;
+        String etag;
+        String lastModified;
+        String payloadDigest;
+        // The same, for the 3-hourly forecast
+        String hourlyEtag;
+        String hourlyLastModified;
+        String hourlyPayloadDigest;
+        // How many days from today on we hold a forecast for
+        int storedDays;
+        // When a full forecast was last fetched or revalidated, or 0 if never
+        long lastFullFetch;
+        // True if the forecast is known to have changed upstream, so nothing cached will do
+        boolean invalidated;
+
+        FollowedLocation(String locationSetting) {
+            this.locationSetting = locationSetting;
+        }
+    }
+
+    /**
+     * Helper method to collect the locations a sync should refresh, along with the validators
+     * stored for each of them.  The preferred location always comes first, even before it has
+     * a row of its own.
+     *
+     * @param preferredLocation The location string of the preferred location.
+     * @param onlyLocations the locations to refresh, or null for every saved one.  Names that
+     *                      are neither the preferred location nor saved are ignored.
+     * @return the locations to refresh.
+     */
+    private Collection<FollowedLocation> getFollowedLocations(String preferredLocation,
+                                                              Set<String> onlyLocations) {
+        Map<String, FollowedLocation> locations = new LinkedHashMap<String, FollowedLocation>();
+        if (onlyLocations == null || onlyLocations.contains(preferredLocation)) {
+            locations.put(preferredLocation, new FollowedLocation(preferredLocation));
+        }
+        LongSparseArray<FollowedLocation> locationsById = new LongSparseArray<FollowedLocation>();
+
+        String selection = null;
+        String[] selectionArgs = null;
+        if (onlyLocations != null) {
+            if (onlyLocations.isEmpty()) {
+                return locations.values();
+            }
+            StringBuilder placeholders = new StringBuilder("?");
+            for (int i = 1; i < onlyLocations.size(); i++) {
+                placeholders.append(", ?");
+            }
+            selection = WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+                    + " IN (" + placeholders + ")";
+            selectionArgs = onlyLocations.toArray(new String[onlyLocations.size()]);
+        }
+        Cursor locationCursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                VALIDATOR_PROJECTION,
+                selection,
+                selectionArgs,
+                null);
+
+        while (locationCursor.moveToNext()) {
+            FollowedLocation location =
+                    new FollowedLocation(locationCursor.getString(INDEX_VALIDATOR_LOCATION_SETTING));
+            location.locationId = locationCursor.getLong(INDEX_VALIDATOR_LOCATION_ID);
+            location.cityId = locationCursor.getLong(INDEX_VALIDATOR_CITY_ID);
+            location.etag = locationCursor.getString(INDEX_VALIDATOR_ETAG);
+            location.lastModified = locationCursor.getString(INDEX_VALIDATOR_LAST_MODIFIED);
+            location.payloadDigest = locationCursor.getString(INDEX_VALIDATOR_PAYLOAD_DIGEST);
+            location.hourlyEtag = locationCursor.getString(INDEX_VALIDATOR_HOURLY_ETAG);
+            location.hourlyLastModified =
+                    locationCursor.getString(INDEX_VALIDATOR_HOURLY_LAST_MODIFIED);
+            location.hourlyPayloadDigest =
+                    locationCursor.getString(INDEX_VALIDATOR_HOURLY_PAYLOAD_DIGEST);
+            location.lastFullFetch = locationCursor.getLong(INDEX_VALIDATOR_LAST_FULL_FETCH);
+            locations.put(location.locationSetting, location);
+            locationsById.put(location.locationId, location);
+        }
+        locationCursor.close();
+
+        if (onlyLocations == null) {
+            // Count the days each location still holds, to pick how it gets refreshed
+            Cursor dayCursor = getContext().getContentResolver().query(
+                    WeatherContract.WeatherEntry.CONTENT_URI,
+                    new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY},
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                    new String[]{Long.toString(getNormalizedDay(0))},
+                    null);
+            while (dayCursor.moveToNext()) {
+                FollowedLocation location = locationsById.get(dayCursor.getLong(0));
+                if (location != null) {
+                    location.storedDays++;
+                }
+            }
+            dayCursor.close();
+        }
+        return locations.values();
+    }
+
+    /**
+     * What a fetch worker hands to the writer for one location.  {@link #forecast} is only set
+     * when there is a new forecast to write, and {@link #conditions} when a group request
+     * brought back today's conditions; a 304 or an unchanged body leaves both null.
+     */
+    private static final class FetchResult {
+        final FollowedLocation location;
+        @LocationStatus int status = LOCATION_STATUS_OK;
+        ForecastParser.Forecast forecast;
+        ForecastParser.Conditions conditions;
+        String etag;
+        String lastModified;
+        String payloadDigest;
+        // true when the network failed and the forecast came from the response cache
+        boolean stale;
+        // true when the response came from the response cache, stale or not, so the server
+        // wasn't reached
+        boolean cached;
+        // true when forecast holds 3-hourly points rather than days
+        boolean hourly;
+        // true when the server answered 304, so the stored forecast is still current
+        boolean notModified;
+
+        FetchResult(FollowedLocation location) {
+            this.location = location;
+        }
+    }
+
+    /**
+     * Fetches today's conditions for a batch of locations with a single group request.  This
+     * runs on a fetch worker, so it must not write to the provider.
+     *
+     * @param batch locations with a resolved city id, no more than
+     *              {@link GroupForecastFetcher#MAX_CITIES_PER_REQUEST} of them.
+     * @param metrics where the fetch and parse stages are recorded
+     */
+    private List<FetchResult> fetchConditions(List<FollowedLocation> batch,
+                                              SyncStageMetrics metrics) {
+        List<FetchResult> results = new ArrayList<FetchResult>(batch.size());
+        LongSparseArray<FetchResult> resultsByCity = new LongSparseArray<FetchResult>();
+        long[] cityIds = new long[batch.size()];
+        for (int i = 0; i < cityIds.length; i++) {
+            FetchResult result = new FetchResult(batch.get(i));
+            results.add(result);
+            resultsByCity.put(result.location.cityId, result);
+            cityIds[i] = result.location.cityId;
+        }
+
+        @LocationStatus int failure = LOCATION_STATUS_OK;
+        try {
+            GroupForecastFetcher.Group group =
+                    GroupForecastFetcher.fetch(getTransport(getContext()), cityIds, metrics);
+            for (ForecastParser.Conditions conditions : group.conditions) {
+                FetchResult result = resultsByCity.get(conditions.cityId);
+                if (result != null) {
+                    result.conditions = conditions;
+                }
+            }
+            for (FetchResult result : results) {
+                result.cached = group.cached;
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            failure = LOCATION_STATUS_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            failure = LOCATION_STATUS_SERVER_INVALID;
+        }
+        for (FetchResult result : results) {
+            result.status = failure;
+        }
+        return results;
+    }
+
+    /**
+     * Fetches and parses the forecast for one location.  This runs on a fetch worker, so it
+     * must not write to the provider.
+     *
+     * @param location The location to fetch, with the validators stored for it.
+     * @param metrics where the fetch and parse stages are recorded
+     */
+    private FetchResult fetchForecast(FollowedLocation location, SyncStageMetrics metrics) {
+        FetchResult result = new FetchResult(location);
+        String locationSetting = location.locationSetting;
+
+        // This needs to be declared outside the try/catch
+        // so that it can be closed in the finally block.
+        ForecastTransport.Response response = null;
 
         String format = "json";
         String units = "metric";
@@ -150,292 +816,666 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
             final String FORECAST_BASE_URL =
                     "http://api.openweathermap.org/data/2.5/forecast/daily?";
             final String QUERY_PARAM = "q";
+            final String ID_PARAM = "id";
             final String FORMAT_PARAM = "mode";
             final String UNITS_PARAM = "units";
             final String DAYS_PARAM = "cnt";
             final String APPID_PARAM = "APPID";
 
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
+            // Once OWM has told us which city a location is, ask for it by id
+            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
+            if (location.cityId > 0) {
+                uriBuilder.appendQueryParameter(ID_PARAM, Long.toString(location.cityId));
+            } else {
+                uriBuilder.appendQueryParameter(QUERY_PARAM, locationSetting);
+            }
+            Uri builtUri = uriBuilder
                     .appendQueryParameter(FORMAT_PARAM, format)
                     .appendQueryParameter(UNITS_PARAM, units)
                     .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
                     .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
                     .build();
 
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+            // Revalidate what we already have rather than asking for the whole forecast again
+            Map<String, String> headers = new HashMap<String, String>();
+            if (location.etag != null) {
+                headers.put(ForecastTransport.HEADER_IF_NONE_MATCH, location.etag);
+            }
+            if (location.lastModified != null) {
+                headers.put(ForecastTransport.HEADER_IF_MODIFIED_SINCE, location.lastModified);
+            }
+            if (location.invalidated) {
+                headers.put(ForecastTransport.HEADER_CACHE_CONTROL,
+                        ForecastTransport.CACHE_CONTROL_NO_CACHE);
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+            // Create the request to OpenWeatherMap
+            long start = SyncStageMetrics.start();
+            response = getTransport(getContext()).get(builtUri.toString(), headers);
+            metrics.record(SyncStageMetrics.STAGE_FETCH, start, 0);
+            metrics.recordNetwork(response);
+            result.cached = ForecastTransport.X_CACHE_HIT.equals(
+                    response.header(ForecastTransport.HEADER_X_CACHE));
+
+            if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // The forecast we stored is still current, so there is nothing to parse, write
+                // or tell anyone about.
+                Log.d(LOG_TAG, "Forecast for " + locationSetting + " not modified");
+                result.notModified = true;
+                return result;
             }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+            // Parse the forecast straight off the wire rather than reading it into a String first
+            result.stale = response.header(ForecastTransport.HEADER_WARNING) != null;
+            result.etag = response.header(ForecastTransport.HEADER_ETAG);
+            result.lastModified = response.header(ForecastTransport.HEADER_LAST_MODIFIED);
+            start = SyncStageMetrics.start();
+            getWeatherDataFromJson(
+                    metrics.countBytes(SyncStageMetrics.STAGE_FETCH, response.body()),
+                    location.payloadDigest, result);
+            metrics.record(SyncStageMetrics.STAGE_PARSE, start,
+                    result.forecast != null ? result.forecast.days.size() : 0);
+            if (result.status == LOCATION_STATUS_OK) {
+                // Not an error OWM reported in the body, so the response cache may keep it
+                response.commit();
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            // If the code didn't successfully get the weather data (an empty stream ends up
+            // here too), there's no point in attempting to parse it.
+            result.status = LOCATION_STATUS_SERVER_DOWN;
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
             e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            result.status = LOCATION_STATUS_SERVER_INVALID;
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
+            if (response != null) {
                 try {
-                    reader.close();
+                    response.close();
                 } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
+                    Log.e(LOG_TAG, "Error closing response", e);
                 }
             }
         }
-        return;
+        return result;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * Fetches and parses the 3-hourly forecast for one location.  This runs on a fetch worker,
+     * so it must not write to the provider.  The series is the biggest payload of a sync, so
+     * it is revalidated and digested just like the daily forecast, and only set on the result
+     * when it differs from the stored one.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @param location The location to fetch.
+     * @param metrics where the fetch and parse stages are recorded
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+    private FetchResult fetchHourly(FollowedLocation location, SyncStageMetrics metrics) {
+        FetchResult result = new FetchResult(location);
+        result.hourly = true;
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        ForecastTransport.Response response = null;
+        try {
+            // Possible parameters are avaiable at OWM's forecast API page, at
+            // http://openweathermap.org/forecast5
+            final String HOURLY_BASE_URL =
+                    "http://api.openweathermap.org/data/2.5/forecast?";
+            final String QUERY_PARAM = "q";
+            final String ID_PARAM = "id";
+            final String UNITS_PARAM = "units";
+            final String APPID_PARAM = "APPID";
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+            Uri.Builder uriBuilder = Uri.parse(HOURLY_BASE_URL).buildUpon();
+            if (location.cityId > 0) {
+                uriBuilder.appendQueryParameter(ID_PARAM, Long.toString(location.cityId));
+            } else {
+                uriBuilder.appendQueryParameter(QUERY_PARAM, location.locationSetting);
+            }
+            Uri builtUri = uriBuilder
+                    .appendQueryParameter(UNITS_PARAM, "metric")
+                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                    .build();
 
-        final String OWM_MESSAGE_CODE = "cod";
+            Map<String, String> headers = new HashMap<String, String>();
+            if (location.hourlyEtag != null) {
+                headers.put(ForecastTransport.HEADER_IF_NONE_MATCH, location.hourlyEtag);
+            }
+            if (location.hourlyLastModified != null) {
+                headers.put(ForecastTransport.HEADER_IF_MODIFIED_SINCE,
+                        location.hourlyLastModified);
+            }
+            if (location.invalidated) {
+                headers.put(ForecastTransport.HEADER_CACHE_CONTROL,
+                        ForecastTransport.CACHE_CONTROL_NO_CACHE);
+            }
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+            long start = SyncStageMetrics.start();
+            response = getTransport(getContext()).get(builtUri.toString(), headers);
+            metrics.record(SyncStageMetrics.STAGE_FETCH, start, 0);
+            metrics.recordNetwork(response);
+            result.cached = ForecastTransport.X_CACHE_HIT.equals(
+                    response.header(ForecastTransport.HEADER_X_CACHE));
+            if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(LOG_TAG, "3-hourly forecast for " + location.locationSetting
+                        + " not modified");
+                return result;
+            }
+            result.stale = response.header(ForecastTransport.HEADER_WARNING) != null;
+            result.etag = response.header(ForecastTransport.HEADER_ETAG);
+            result.lastModified = response.header(ForecastTransport.HEADER_LAST_MODIFIED);
+
+            start = SyncStageMetrics.start();
+            MessageDigest messageDigest = newPayloadDigest();
+            DigestInputStream digestStream = new DigestInputStream(
+                    metrics.countBytes(SyncStageMetrics.STAGE_FETCH, response.body()),
+                    messageDigest);
+            ForecastParser.Forecast forecast = ForecastParser.parseHourly(digestStream);
+            ForecastParser.drain(digestStream);
+            metrics.record(SyncStageMetrics.STAGE_PARSE, start, forecast.hours.size());
+            if (forecast.code != HttpURLConnection.HTTP_OK) {
+                result.status = LOCATION_STATUS_SERVER_INVALID;
+            } else if (!forecast.hasCity) {
+                throw new JSONException("No city in 3-hourly forecast for "
+                        + location.locationSetting);
+            } else {
+                response.commit();
+                result.payloadDigest = toHex(messageDigest.digest());
+                if (result.payloadDigest.equals(location.hourlyPayloadDigest)) {
+                    Log.d(LOG_TAG, "3-hourly forecast for " + location.locationSetting
+                            + " unchanged, skipped writing " + forecast.hours.size() + " points");
+                } else {
+                    result.forecast = forecast;
                 }
             }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            result.status = LOCATION_STATUS_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            result.status = LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing response", e);
+                }
+            }
+        }
+        return result;
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+    /**
+     * Read the forecast in JSON Format from the stream and pull out the data we need to
+     * construct the Strings needed for the wireframes.
+     *
+     * The stream is handed to {@link ForecastParser}, which builds each row as soon as that
+     * day's tokens have been read, so the raw response is never buffered in memory.
+     *
+     * The stream is digested as it is parsed.  When the digest matches the one stored for the
+     * location the body is byte-identical to what we already have, so the provider writes and
+     * the widget/Muzei/notification fan-out are skipped.  (Because the body is never buffered,
+     * the digest is only known once the parse has finished; the parse itself is cheap next to
+     * the writes and fan-out it lets us avoid.)
+     */
+    private void getWeatherDataFromJson(InputStream forecastStream,
+                                        String storedDigest,
+                                        FetchResult result)
+            throws JSONException, IOException {
 
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
 
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
+        Time dayTime = new Time();
+        dayTime.setToNow();
 
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+        // now we work exclusively in UTC
+        dayTime = new Time();
 
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        MessageDigest messageDigest = newPayloadDigest();
+        DigestInputStream digestStream = new DigestInputStream(forecastStream, messageDigest);
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+        ForecastParser.Forecast forecast =
+                new ForecastParser(dayTime, julianStartDay).parse(digestStream);
+        ForecastParser.drain(digestStream);
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+        // do we have an error?
+        switch (forecast.code) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                result.status = LOCATION_STATUS_INVALID;
+                return;
+            default:
+                result.status = LOCATION_STATUS_SERVER_DOWN;
+                return;
+        }
 
-                double high;
-                double low;
+        if (!forecast.hasCity) {
+            throw new JSONException("No city in forecast for " + result.location.locationSetting);
+        }
 
-                String description;
-                int weatherId;
+        result.payloadDigest = toHex(messageDigest.digest());
+        if (result.payloadDigest.equals(storedDigest)) {
+            Log.d(LOG_TAG, "Forecast for " + result.location.locationSetting
+                    + " unchanged, skipped writing " + forecast.days.size() + " rows");
+            return;
+        }
+        result.forecast = forecast;
+    }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+    /**
+     * @return a fresh digest of the kind stored for forecast payloads
+     */
+    private static MessageDigest newPayloadDigest() {
+        try {
+            return MessageDigest.getInstance(PAYLOAD_DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device ships SHA-1, so this can't really happen
+            throw new IllegalStateException(e);
+        }
+    }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+    /**
+     * Adds the writes for what a fetch worker brought back for one location to the sync's
+     * batch.  Only the sync thread calls this, so there is a single writer however many fetches
+     * run in parallel.
+     *
+     * The response validators go into the same batch as the forecast, so a payload we failed
+     * to store is never treated as current on the next sync.
+     *
+     * @param operations the sync's batch, which the writes are appended to
+     * @param batchExtras the days the batch writes by location, or null to write them as rows
+     * @return true if forecast rows are to be written.
+     */
+    private boolean commitForecast(FetchResult result, SyncResult syncResult,
+                                   ArrayList<ContentProviderOperation> operations,
+                                   Bundle batchExtras) {
+        switch (result.status) {
+            case LOCATION_STATUS_SERVER_DOWN:
+                syncResult.stats.numIoExceptions++;
+                break;
+            case LOCATION_STATUS_SERVER_INVALID:
+                syncResult.stats.numParseExceptions++;
+                break;
+        }
+        if (result.conditions != null) {
+            return commitConditions(result.location.locationId, result.conditions, syncResult,
+                    operations);
+        }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+        // A forecast served stale from the response cache says nothing new about the server
+        long fullFetchTime = result.stale ? 0 : System.currentTimeMillis();
+        ForecastParser.Forecast forecast = result.forecast;
+        if (forecast == null) {
+            if (result.location.locationId == -1) {
+                return false;
+            }
+            if (result.payloadDigest != null) {
+                // Same body as the stored forecast, but the response may carry new validators
+                operations.add(buildFetchStateUpdate(
+                        newLocationUpdate(result.location.locationId), 0, result.etag,
+                        result.lastModified, result.payloadDigest, fullFetchTime));
+            } else if (result.notModified) {
+                // The stored forecast was revalidated, which is as good as fetching it again
+                operations.add(newLocationUpdate(result.location.locationId)
+                        .withValue(WeatherContract.LocationEntry.COLUMN_LAST_FULL_FETCH,
+                                fullFetchTime)
+                        .build());
+            }
+            return false;
+        }
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+        // The location is resolved inside the batch, and every later write takes its row ID
+        // from there, so a new location is never left behind by a batch that fails
+        int upsertIndex = addLocationUpsert(result.location.locationSetting, forecast, operations);
+        operations.add(buildFetchStateUpdate(newUpsertedLocationUpdate(upsertIndex),
+                forecast.cityId, result.etag, result.lastModified, result.payloadDigest,
+                fullFetchTime));
+
+        long locationId = result.location.locationId;
+        int parsed = forecast.days.size();
+        // Only the days whose forecast actually moved are written.  A location without a row
+        // has no stored days to compare against.
+        int inserted = locationId != -1 ? retainChangedDays(locationId, forecast.days) : parsed;
+
+        // add to database
+        if ( inserted > 0 ) {
+            String locationSetting = result.location.locationSetting;
+            if (batchExtras != null) {
+                // One step writes the whole batch from its arrays; it only needs the row ID
+                batchExtras.putBundle(WeatherContract.WeatherEntry.getDaysKey(locationSetting),
+                        forecast.days.toBundle(locationId));
+                operations.add(ContentProviderOperation.newInsert(
+                        WeatherContract.WeatherEntry.buildWeatherLocationDays(locationSetting))
+                        .withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                                upsertIndex)
+                        .build());
+            } else {
+                // Inserted through the location's uri, so only the days written are announced
+                Uri locationUri = WeatherContract.WeatherEntry.buildWeatherLocation(
+                        locationSetting);
+                for (ContentValues dayValues : forecast.days.toContentValues(locationId)) {
+                    operations.add(ContentProviderOperation.newInsert(locationUri)
+                            .withValues(dayValues)
+                            .withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                                    upsertIndex)
+                            .build());
+                }
+            }
+            syncResult.stats.numInserts += inserted;
+        }
+        syncResult.stats.numSkippedEntries += parsed - inserted;
+        return inserted > 0;
+    }
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+    /**
+     * Helper method to write the days of a forecast.  Where the provider can be called
+     * directly the batch goes over as primitive arrays; older platforms get ContentValues.
+     *
+     * @param context Context used to reach the provider
+     * @param locationSetting the location the days belong to
+     * @param locationId the row ID of that location
+     * @param days the days to write
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static void insertDays(Context context, String locationSetting, long locationId,
+                           WeatherBatch days) {
+        Uri locationUri = WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            context.getContentResolver().call(locationUri,
+                    WeatherContract.WeatherEntry.METHOD_INSERT_DAYS, locationSetting,
+                    days.toBundle(locationId));
+        } else {
+            context.getContentResolver().bulkInsert(locationUri,
+                    days.toContentValues(locationId));
+        }
+    }
 
-                ContentValues weatherValues = new ContentValues();
+    /**
+     * Replaces the 3-hourly series of a location.  The location status only follows the daily
+     * forecast, and since the whole series is rewritten whenever it changes its points are left
+     * out of the change counts the sync schedule is steered by, and of the fan-out.
+     *
+     * @return true if any point is to be written.
+     */
+    private boolean commitHourly(FetchResult result,
+                                 ArrayList<ContentProviderOperation> operations) {
+        ForecastParser.Forecast forecast = result.forecast;
+        if (forecast == null) {
+            if (result.payloadDigest != null && result.location.locationId != -1) {
+                // Same body as the stored series, but the response may carry new validators
+                operations.add(buildHourlyFetchStateUpdate(
+                        newLocationUpdate(result.location.locationId),
+                        result.etag, result.lastModified, result.payloadDigest));
+            }
+            return false;
+        }
+        int upsertIndex = addLocationUpsert(result.location.locationSetting, forecast, operations);
+        operations.add(buildHourlyFetchStateUpdate(newUpsertedLocationUpdate(upsertIndex),
+                result.etag, result.lastModified, result.payloadDigest));
+        if (forecast.hours.isEmpty()) {
+            return false;
+        }
+        Uri hourlyUri =
+                WeatherContract.HourlyEntry.buildHourlyLocation(result.location.locationSetting);
+        for (ContentValues hourlyValues : forecast.hours) {
+            operations.add(ContentProviderOperation.newInsert(hourlyUri)
+                    .withValues(hourlyValues)
+                    .withValueBackReference(WeatherContract.HourlyEntry.COLUMN_LOC_KEY,
+                            upsertIndex)
+                    .build());
+        }
+        return true;
+    }
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+    /**
+     * Compares freshly parsed days against what is stored for the location, and drops the
+     * ones that have not changed from the batch.
+     *
+     * @param locationId the row ID of the location
+     * @param days the parsed days, in date order
+     * @return the number of days left, which are new or differ in some column from the stored
+     * ones.
+     */
+    private int retainChangedDays(long locationId, WeatherBatch days) {
+        int count = days.size();
+        if (count == 0) {
+            return 0;
+        }
+        Time time = new Time();
+        long[] normalizedDates = new long[count];
+        boolean[] changed = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            normalizedDates[i] = WeatherContract.normalizeDate(days.getDate(i), time);
+            changed[i] = true;
+        }
 
-                cVVector.add(weatherValues);
+        Cursor storedCursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                DAY_PROJECTION,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                        + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Long.toString(locationId), Long.toString(normalizedDates[0])},
+                null);
+        while (storedCursor.moveToNext()) {
+            long storedDate = storedCursor.getLong(INDEX_DAY_DATE);
+            for (int i = 0; i < count; i++) {
+                if (normalizedDates[i] == storedDate) {
+                    changed[i] = !isSameDay(days, i, storedCursor);
+                    break;
+                }
             }
+        }
+        storedCursor.close();
+        return days.retain(changed);
+    }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
+    /**
+     * @return true if every column of the parsed day holds the same value in the stored row
+     * the cursor is on.
+     */
+    private static boolean isSameDay(WeatherBatch days, int i, Cursor stored) {
+        // Already matched on the normalized date
+        return days.getWeatherId(i) == stored.getInt(INDEX_DAY_WEATHER_ID)
+                && TextUtils.equals(days.getDescription(i), stored.getString(INDEX_DAY_SHORT_DESC))
+                && days.getMinTemp(i) == stored.getDouble(INDEX_DAY_MIN_TEMP)
+                && days.getMaxTemp(i) == stored.getDouble(INDEX_DAY_MAX_TEMP)
+                && days.getHumidity(i) == stored.getDouble(INDEX_DAY_HUMIDITY)
+                && days.getPressure(i) == stored.getDouble(INDEX_DAY_PRESSURE)
+                && days.getWindSpeed(i) == stored.getDouble(INDEX_DAY_WIND_SPEED)
+                && days.getDegrees(i) == stored.getDouble(INDEX_DAY_DEGREES);
+    }
 
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+    /**
+     * @return true if folding the conditions, with the given temperature range, into the stored
+     * day the cursor is on would leave every column as it is.
+     */
+    private static boolean isSameDay(ForecastParser.Conditions conditions, double low,
+                                     double high, Cursor stored) {
+        // A missing description leaves the stored one in place
+        return conditions.weatherId == stored.getInt(INDEX_DAY_WEATHER_ID)
+                && (conditions.description == null || conditions.description.equals(
+                        stored.getString(INDEX_DAY_SHORT_DESC)))
+                && low == stored.getDouble(INDEX_DAY_MIN_TEMP)
+                && high == stored.getDouble(INDEX_DAY_MAX_TEMP)
+                && conditions.humidity == stored.getDouble(INDEX_DAY_HUMIDITY)
+                && conditions.pressure == stored.getDouble(INDEX_DAY_PRESSURE)
+                && conditions.windSpeed == stored.getDouble(INDEX_DAY_WIND_SPEED)
+                && conditions.windDirection == stored.getDouble(INDEX_DAY_DEGREES);
+    }
 
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-            }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+    /**
+     * Folds the current conditions from a group request into today's row of a location.  The
+     * conditions replace the weather, humidity, pressure and wind of the day, and widen its
+     * temperature range if the current temperature falls outside it.  A row that would come out
+     * the same is left alone.
+     *
+     * @return true if today's row is to be updated.
+     */
+    private boolean commitConditions(long locationId, ForecastParser.Conditions conditions,
+                                     SyncResult syncResult,
+                                     ArrayList<ContentProviderOperation> operations) {
+        String selection = WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?";
+        String[] selectionArgs = new String[]{Long.toString(locationId),
+                Long.toString(getNormalizedDay(0))};
+
+        Cursor todayCursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, DAY_PROJECTION,
+                selection, selectionArgs, null);
+        if (!todayCursor.moveToFirst()) {
+            // Nothing to fold the conditions into; the next full fetch will fill the day in
+            todayCursor.close();
+            return false;
+        }
+        double storedLow = todayCursor.getDouble(INDEX_DAY_MIN_TEMP);
+        double storedHigh = todayCursor.getDouble(INDEX_DAY_MAX_TEMP);
+        double low = Math.min(storedLow, conditions.temperature);
+        double high = Math.max(storedHigh, conditions.temperature);
+        boolean unchanged = isSameDay(conditions, low, high, todayCursor);
+        // A forecast delta may patch these columns from the push thread while the batch is
+        // being built, so the update only goes ahead if they still hold what was read here
+        String updateSelection = selection
+                + " AND " + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " = ?"
+                + " AND " + WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + " = ?"
+                + " AND " + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " = ?"
+                + " AND " + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " = ?";
+        String[] updateSelectionArgs = new String[]{selectionArgs[0], selectionArgs[1],
+                Integer.toString(todayCursor.getInt(INDEX_DAY_WEATHER_ID)),
+                todayCursor.getString(INDEX_DAY_SHORT_DESC),
+                Double.toString(storedLow),
+                Double.toString(storedHigh)};
+        todayCursor.close();
+        if (unchanged) {
+            syncResult.stats.numSkippedEntries++;
+            return false;
+        }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+        ContentValues weatherValues = new ContentValues();
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, conditions.weatherId);
+        if (conditions.description != null) {
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, conditions.description);
         }
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, conditions.humidity);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, conditions.pressure);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, conditions.windSpeed);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, conditions.windDirection);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
+
+        // If a delta got there first the update matches nothing, and the newer delta stands
+        // until the next sync folds the conditions in
+        operations.add(ContentProviderOperation.newUpdate(WeatherContract.WeatherEntry.CONTENT_URI)
+                .withValues(weatherValues)
+                .withSelection(updateSelection, updateSelectionArgs)
+                .build());
+        syncResult.stats.numUpdates++;
+        return true;
     }
 
-    private void updateWidgets() {
-        Context context = getContext();
+    /**
+     * @param dayOffset days from today, in local time
+     * @return the normalized date of that day, as stored in the weather table
+     */
+    static long getNormalizedDay(int dayOffset) {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        return new Time().setJulianDay(julianDay + dayOffset);
+    }
+
+    private static void updateWidgets(Context context) {
         // Setting the package ensures that only components in our app will receive the broadcast
         Intent dataUpdatedIntent = new Intent(ACTION_DATA_UPDATED)
                 .setPackage(context.getPackageName());
         context.sendBroadcast(dataUpdatedIntent);
     }
 
-    private void updateMuzei() {
+    private static void updateMuzei(Context context) {
         // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
         // Muzei background on lower API level devices
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            Context context = getContext();
             context.startService(new Intent(ACTION_DATA_UPDATED)
                     .setClass(context, WeatherMuzeiSource.class));
         }
     }
 
-    private void notifyWeather() {
-        Context context = getContext();
-        //checking the last update and notify if it' the first of the day
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
-        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
-                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
-
+    /**
+     * Helper method to send today's forecast for the preferred location to the watch.
+     *
+     * @return the pending result of the send, or null if there is nothing to send
+     */
+    private static PendingResult<DataApi.DataItemResult> updateWatchFace(
+            Context context, GoogleApiClient googleApiClient) {
+        PendingResult<DataApi.DataItemResult> sent = null;
         // Send updated weather to wear
-        String locationQuery1 = Utility.getPreferredLocation(context);
-        Uri weatherUri1 = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery1, System.currentTimeMillis());
+        String locationQuery = Utility.getPreferredLocation(context);
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
 
         // we'll query our contentProvider, as always
-        Cursor cursor1 = context.getContentResolver().query(weatherUri1, NOTIFY_WEATHER_PROJECTION, null, null, null);
+        Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
 
-        if (cursor1.moveToFirst()) {
-            int weatherId = cursor1.getInt(INDEX_WEATHER_ID);
-            double high = cursor1.getDouble(INDEX_MAX_TEMP);
-            double low = cursor1.getDouble(INDEX_MIN_TEMP);
+        if (cursor.moveToFirst()) {
+            int weatherId = cursor.getInt(INDEX_WEATHER_ID);
+            double high = cursor.getDouble(INDEX_MAX_TEMP);
+            double low = cursor.getDouble(INDEX_MIN_TEMP);
 
             int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
 
-            sendUpdatesToWatchFace(Utility.formatTemperature(context, low), Utility.formatTemperature(context, high), iconId);
+            sent = sendUpdatesToWatchFace(context, googleApiClient,
+                    Utility.formatTemperature(context, low),
+                    Utility.formatTemperature(context, high), iconId);
+        }
+        cursor.close();
+        return sent;
+    }
+
+    /**
+     * Helper method to bring the widgets, Muzei and the watch up to date after the forecast of
+     * the preferred location was changed outside a sync.  The watch is reached through a client
+     * of its own, which this waits on, so it must not be called from the UI thread.
+     *
+     * @param context Context used to reach the consumers
+     */
+    static void notifyForecastPatched(Context context) {
+        updateWidgets(context);
+        updateMuzei(context);
+
+        GoogleApiClient googleApiClient = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .build();
+        ConnectionResult connectionResult = googleApiClient.blockingConnect(
+                FAN_OUT_WATCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (!connectionResult.isSuccess()) {
+            Log.d(LOG_TAG, "Could not reach wear: " + connectionResult);
+            return;
         }
+        try {
+            PendingResult<DataApi.DataItemResult> sent = updateWatchFace(context, googleApiClient);
+            if (sent != null) {
+                sWearResultCallback.onResult(
+                        sent.await(FAN_OUT_WATCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            }
+        } finally {
+            googleApiClient.disconnect();
+        }
+    }
 
+    private void notifyWeather() {
+        Context context = getContext();
+        //checking the last update and notify if it' the first of the day
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
+        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
+                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
 
         if ( displayNotifications ) {
 
@@ -542,7 +1582,9 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
         return Asset.createFromBytes(byteStream.toByteArray());
     }
 
-    public void sendUpdatesToWatchFace(String lowTemp, String highTemp, int iconId) {
+    public static PendingResult<DataApi.DataItemResult> sendUpdatesToWatchFace(
+            Context context, GoogleApiClient googleApiClient,
+            String lowTemp, String highTemp, int iconId) {
         PutDataMapRequest putDataMapRequest = PutDataMapRequest.create("/temperature-data");
 
         putDataMapRequest.getDataMap().putLong("time", System.currentTimeMillis());
@@ -553,74 +1595,151 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
         putDataMapRequest.getDataMap().putString("high_temp", highTemp);
         putDataMapRequest.getDataMap().putString("low_temp", lowTemp);
 
-        Bitmap bitmap = BitmapFactory.decodeResource(getContext().getResources(), iconId);
+        Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), iconId);
         Asset asset = createAssetFromBitmap(bitmap);
         putDataMapRequest.getDataMap().putAsset("weather_image", asset);
 
         PutDataRequest request = putDataMapRequest.asPutDataRequest();
         request.setUrgent();
 
-        Wearable.DataApi.putDataItem(mGoogleApiClient, request)
-                .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
-                    @Override
-                    public void onResult(@NonNull DataApi.DataItemResult dataItemResult) {
-                        if (!dataItemResult.getStatus().isSuccess()) {
-                            Log.e(LOG_TAG, "Failed to send data to wear");
-                        } else {
-                            Log.e(LOG_TAG, "Sent data to wear");
-                        }
-                    }
-                });
+        return Wearable.DataApi.putDataItem(googleApiClient, request);
     }
 
     /**
-     * Helper method to handle insertion of a new location in the weather database.
+     * Helper method to add the upsert of a location to a batch.  The provider answers it with
+     * the uri of the location's row, adding the row first if there is none, so the operations
+     * after it can back-reference the row ID within the same transaction.
      *
      * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
+     * @param forecast the forecast whose city is stored if the location is new
+     * @param operations the sync's batch, which the upsert is appended to
+     * @return the index of the upsert in the batch
      */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
+    private static int addLocationUpsert(String locationSetting, ForecastParser.Forecast forecast,
+                                         ArrayList<ContentProviderOperation> operations) {
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, forecast.cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, forecast.cityLatitude);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+                forecast.cityLongitude);
+        operations.add(ContentProviderOperation.newInsert(
+                WeatherContract.LocationEntry.buildLocationUpsertUri())
+                .withValues(locationValues)
+                .build());
+        return operations.size() - 1;
+    }
 
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
+    /**
+     * @param locationId the row ID of the location
+     * @return an update of the location's row
+     */
+    private static ContentProviderOperation.Builder newLocationUpdate(long locationId) {
+        return ContentProviderOperation.newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+                .withSelection(WeatherContract.LocationEntry._ID + " = ?",
+                        new String[]{Long.toString(locationId)});
+    }
 
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
+    /**
+     * @param upsertIndex the index of the location's upsert in the batch
+     * @return an update of the row the upsert resolved
+     */
+    private static ContentProviderOperation.Builder newUpsertedLocationUpdate(int upsertIndex) {
+        return ContentProviderOperation.newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+                .withSelection(WeatherContract.LocationEntry._ID + " = ?", new String[1])
+                .withSelectionBackReference(0, upsertIndex);
+    }
 
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+    /**
+     * Helper method to build the update that remembers the OWM city id and the validators of the
+     * forecast stored for a location.  A response without HTTP validators clears the old ones,
+     * since they no longer describe what we have.
+     *
+     * @param locationUpdate an update of the location's row
+     * @param cityId OWM's id for the city, or 0 if the response didn't carry one
+     * @param etag the ETag of the response, or null
+     * @param lastModified the Last-Modified date of the response, or null
+     * @param payloadDigest the digest of the response body
+     * @param fullFetchTime when the forecast was fetched, or 0 if it came stale from the
+     *                      response cache and the stored time should stand
+     * @return the update, to be applied with the forecast
+     */
+    private static ContentProviderOperation buildFetchStateUpdate(
+            ContentProviderOperation.Builder locationUpdate, long cityId, String etag,
+            String lastModified, String payloadDigest, long fullFetchTime) {
+        ContentValues validatorValues = new ContentValues();
+        if (cityId > 0) {
+            validatorValues.put(WeatherContract.LocationEntry.COLUMN_CITY_ID, cityId);
+        }
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_ETAG, etag);
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED, lastModified);
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_PAYLOAD_DIGEST, payloadDigest);
+        if (fullFetchTime > 0) {
+            validatorValues.put(WeatherContract.LocationEntry.COLUMN_LAST_FULL_FETCH,
+                    fullFetchTime);
+        }
+        return locationUpdate.withValues(validatorValues).build();
+    }
 
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
+    /**
+     * Helper method to build the update that remembers the validators of the 3-hourly forecast
+     * stored for a location.
+     *
+     * @param locationUpdate an update of the location's row
+     * @param etag the ETag of the response, or null
+     * @param lastModified the Last-Modified date of the response, or null
+     * @param payloadDigest the digest of the response body
+     * @return the update, to be applied with the series
+     */
+    private static ContentProviderOperation buildHourlyFetchStateUpdate(
+            ContentProviderOperation.Builder locationUpdate, String etag, String lastModified,
+            String payloadDigest) {
+        ContentValues validatorValues = new ContentValues();
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_HOURLY_ETAG, etag);
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_HOURLY_LAST_MODIFIED,
+                lastModified);
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_HOURLY_PAYLOAD_DIGEST,
+                payloadDigest);
+        return locationUpdate.withValues(validatorValues).build();
+    }
 
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
         }
+        return hex.toString();
+    }
 
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+    /**
+     * @param context Context used to find the cache directory
+     * @return the transport syncs use to reach OpenWeatherMap
+     */
+    static synchronized ForecastTransport getTransport(Context context) {
+        if (sTransport == null) {
+            sTransport = new CachingForecastTransport(new OkHttpForecastTransport(),
+                    new File(context.getCacheDir(), RESPONSE_CACHE_DIRECTORY));
+        }
+        return sTransport;
+    }
+
+    /**
+     * Helper method to swap the transport syncs use, for instance for a
+     * {@link FixtureForecastTransport} when testing offline
+     * @param transport the transport to use, or null to go back to the network
+     */
+    public static synchronized void setTransport(ForecastTransport transport) {
+        sTransport = transport;
+    }
+
+    /**
+     * Helper method to schedule the sync adapter periodic execution at the interval
+     * {@link SyncSchedulePolicy} asks for
+     */
+    public static void configurePeriodicSync(Context context) {
+        int syncInterval = SyncSchedulePolicy.getSyncInterval(context);
+        configurePeriodicSync(context, syncInterval, SyncSchedulePolicy.getFlexTime(syncInterval));
     }
 
     /**
@@ -629,7 +1748,13 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
     public static void configurePeriodicSync(Context context, int syncInterval, int flexTime) {
         Account account = getSyncAccount(context);
         String authority = context.getString(R.string.content_authority);
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // The job scheduler can batch our wakeups with other work and wait for a network,
+            // so the periodic sync moves there and the account one is dropped.  Jobs only take a
+            // flex time from API 24 on.
+            SunshineJobService.schedule(context, syncInterval);
+            ContentResolver.removePeriodicSync(account, authority, new Bundle());
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             // we can enable inexact timers in our periodic sync
             SyncRequest request = new SyncRequest.Builder().
                     syncPeriodic(syncInterval, flexTime).
@@ -640,16 +1765,45 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
             ContentResolver.addPeriodicSync(account,
                     authority, new Bundle(), syncInterval);
         }
+        SyncSchedulePolicy.setAppliedInterval(context, syncInterval);
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Helper method to have the sync adapter sync immediately.  Requests that arrive close
+     * together are merged into one sync by {@link SyncRequestCoordinator}.
      * @param context The context used to access the account service
+     * @param reasons Why the sync is wanted
      */
-    public static void syncImmediately(Context context) {
+    public static void syncImmediately(Context context,
+                                       @SyncRequestCoordinator.SyncReason int reasons) {
+        SyncRequestCoordinator.getInstance(context).requestSync(reasons);
+    }
+
+    /**
+     * Helper method to request one expedited sync now, bypassing the coordinator
+     * @param context The context used to access the account service
+     * @param reasons Why the sync is wanted, carried in the sync extras
+     * @param locationSettings The only locations to refresh, or null for the preferred one
+     */
+    static void requestImmediateSync(Context context, int reasons,
+                                     @Nullable String[] locationSettings) {
+        if (!SyncCircuitBreaker.allowRequest(context)) {
+            // The server is failing, so answer from what we already have
+            Log.d(LOG_TAG, "Backing off, answering from local data");
+            context.sendBroadcast(new Intent(ACTION_DATA_UPDATED)
+                    .setPackage(context.getPackageName()));
+            return;
+        }
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        if (locationSettings != null) {
+            bundle.putString(EXTRA_SYNC_LOCATIONS,
+                    TextUtils.join(SYNC_LOCATIONS_SEPARATOR, locationSettings));
+        } else {
+            bundle.putBoolean(EXTRA_PREFERRED_LOCATION_ONLY, true);
+        }
+        bundle.putInt(EXTRA_SYNC_REASONS, reasons);
         ContentResolver.requestSync(getSyncAccount(context),
                 context.getString(R.string.content_authority), bundle);
     }
@@ -663,6 +1817,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
      * @return a fake account.
      */
     public static Account getSyncAccount(Context context) {
+        // The account never changes once it exists, so only look it up once per process
+        Account account = sSyncAccount;
+        if (account != null) {
+            return account;
+        }
+
         // Get an instance of the Android account manager
         AccountManager accountManager =
                 (AccountManager) context.getSystemService(Context.ACCOUNT_SERVICE);
@@ -690,6 +1850,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
 
             onAccountCreated(newAccount, context);
         }
+        sSyncAccount = newAccount;
         return newAccount;
     }
 
@@ -697,7 +1858,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
         /*
          * Since we've created an account
          */
-        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        SunshineSyncAdapter.configurePeriodicSync(context);
 
         /*
          * Without calling setSyncAutomatically, our periodic sync will not be enabled.
@@ -707,7 +1868,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
         /*
          * Finally, let's do a sync to get things started
          */
-        syncImmediately(context);
+        syncImmediately(context, SyncRequestCoordinator.REASON_ACCOUNT_CREATED);
     }
 
     public static void initializeSyncAdapter(Context context) {
@@ -715,15 +1876,17 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter
     }
 
     /**
-     * Sets the location status into shared preference.  This function should not be called from
-     * the UI thread because it uses commit to write to the shared preferences.
+     * Sets the status of a location into shared preference.  This function should not be called
+     * from the UI thread because it uses commit to write to the shared preferences.
      * @param c Context to get the PreferenceManager from.
+     * @param locationSetting The location string the status belongs to
      * @param locationStatus The IntDef value to set
      */
-    static private void setLocationStatus(Context c, @LocationStatus int locationStatus){
+    static private void setLocationStatus(Context c, String locationSetting,
+                                          @LocationStatus int locationStatus){
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
         SharedPreferences.Editor spe = sp.edit();
-        spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
+        spe.putInt(Utility.getLocationStatusKey(c, locationSetting), locationStatus);
         spe.commit();
     }
 }
\ No newline at end of file
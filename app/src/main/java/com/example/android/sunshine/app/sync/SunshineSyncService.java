@@ -1,6 +1,7 @@
 package com.example.android.sunshine.app.sync;
 
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
@@ -12,10 +13,18 @@ public class SunshineSyncService extends Service {
     @Override
     public void onCreate() {
         Log.d("SunshineSyncService", "onCreate - SunshineSyncService");
+        getSyncAdapter(this);
+    }
+
+    /**
+     * @return the one sync adapter of the process, shared with the job scheduler backend
+     */
+    static SunshineSyncAdapter getSyncAdapter(Context context) {
         synchronized (sSyncAdapterLock) {
             if (sSunshineSyncAdapter == null) {
-                sSunshineSyncAdapter = new SunshineSyncAdapter(getApplicationContext(), true);
+                sSunshineSyncAdapter = new SunshineSyncAdapter(context.getApplicationContext(), true);
             }
+            return sSunshineSyncAdapter;
         }
     }
 
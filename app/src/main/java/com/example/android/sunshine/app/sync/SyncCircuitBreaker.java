@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Keeps syncs away from the weather server while it is failing.
+ *
+ * Each sync that cannot reach the server pushes the next allowed attempt back by an exponentially
+ * growing, jittered delay.  After {@link #FAILURE_THRESHOLD} failures in a row the breaker opens
+ * for {@link #OPEN_MILLIS}; the first sync after that is a trial, and one more failure opens it
+ * again.  The state lives in the shared preferences so that every sync trigger, and every
+ * process, sees the same breaker.
+ */
+public class SyncCircuitBreaker {
+    private static final String LOG_TAG = SyncCircuitBreaker.class.getSimpleName();
+
+    private static final long BASE_BACKOFF_MILLIS = 1000 * 60;
+    private static final long MAX_BACKOFF_MILLIS = 1000 * 60 * 30;
+    static final int FAILURE_THRESHOLD = 4;
+    static final long OPEN_MILLIS = 1000 * 60 * 60;
+
+    private static final String PREF_FAILURES = "sync_breaker_failures";
+    private static final String PREF_RETRY_AT = "sync_breaker_retry_at";
+
+    private static final Random sJitter = new Random();
+
+    private SyncCircuitBreaker() {
+    }
+
+    /**
+     * @param context Context used to read the breaker state
+     * @return true if a sync may go to the server now
+     */
+    public static synchronized boolean allowRequest(Context context) {
+        return getRetryDelayMillis(context) == 0;
+    }
+
+    /**
+     * @param context Context used to read the breaker state
+     * @return how long until a sync may go to the server again, in milliseconds
+     */
+    public static synchronized long getRetryDelayMillis(Context context) {
+        long retryAt = PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(PREF_RETRY_AT, 0);
+        return Math.max(0, retryAt - System.currentTimeMillis());
+    }
+
+    /**
+     * Closes the breaker after a sync that got an answer from the server.
+     */
+    static synchronized void recordSuccess(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (prefs.getInt(PREF_FAILURES, 0) != 0) {
+            Log.d(LOG_TAG, "Server reachable again, closing breaker");
+            prefs.edit().remove(PREF_FAILURES).remove(PREF_RETRY_AT).apply();
+        }
+    }
+
+    /**
+     * Backs off, or opens the breaker, after a sync that could not reach the server.
+     */
+    static synchronized void recordFailure(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int failures = prefs.getInt(PREF_FAILURES, 0) + 1;
+        long delay;
+        if (failures >= FAILURE_THRESHOLD) {
+            delay = OPEN_MILLIS;
+        } else {
+            delay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (failures - 1));
+        }
+        // Spread the retries of every device that saw the same outage
+        delay = delay / 2 + (long) (sJitter.nextDouble() * (delay / 2));
+        Log.d(LOG_TAG, failures + " failed syncs in a row, next attempt in " + delay / 1000 + "s");
+        prefs.edit()
+                .putInt(PREF_FAILURES, failures)
+                .putLong(PREF_RETRY_AT, System.currentTimeMillis() + delay)
+                .apply();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Merges the immediate sync requests that arrive close together into a single sync.
+ *
+ * The first request opens a window of {@link #COALESCE_WINDOW_MILLIS}; every request that arrives
+ * before it closes only adds its reason, and the locations it wants refreshed, to the pending
+ * set.  When the window closes one expedited sync is requested carrying the union of both.
+ */
+public class SyncRequestCoordinator {
+    private static final String LOG_TAG = SyncRequestCoordinator.class.getSimpleName();
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(flag = true, value = {REASON_USER, REASON_SETTINGS, REASON_ACCOUNT_CREATED,
+            REASON_WATCH, REASON_GCM})
+    public @interface SyncReason {}
+
+    public static final int REASON_USER = 1;
+    public static final int REASON_SETTINGS = 1 << 1;
+    public static final int REASON_ACCOUNT_CREATED = 1 << 2;
+    public static final int REASON_WATCH = 1 << 3;
+    public static final int REASON_GCM = 1 << 4;
+
+    static final long COALESCE_WINDOW_MILLIS = 500;
+
+    private static SyncRequestCoordinator sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    private int mPendingReasons;
+    private int mMergedRequests;
+    // Whether a pending request wants the preferred location, and which others are wanted
+    private boolean mPendingPreferred;
+    private final Set<String> mPendingLocations = new LinkedHashSet<String>();
+
+    private SyncRequestCoordinator(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    public static synchronized SyncRequestCoordinator getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncRequestCoordinator(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Asks for an immediate sync, merged with any other request inside the current window.
+     *
+     * @param reasons why the sync is wanted
+     */
+    public synchronized void requestSync(@SyncReason int reasons) {
+        mPendingPreferred = true;
+        enqueue(reasons);
+    }
+
+    /**
+     * Asks for an immediate sync of just the given locations, merged with any other request
+     * inside the current window.
+     *
+     * @param reasons why the sync is wanted
+     * @param locationSettings the locations to refresh
+     */
+    public synchronized void requestLocationSync(@SyncReason int reasons,
+                                                 Collection<String> locationSettings) {
+        mPendingLocations.addAll(locationSettings);
+        enqueue(reasons);
+    }
+
+    private void enqueue(int reasons) {
+        if (mPendingReasons == 0) {
+            mHandler.postDelayed(mDispatch, COALESCE_WINDOW_MILLIS);
+        } else {
+            mMergedRequests++;
+        }
+        mPendingReasons |= reasons;
+    }
+
+    /**
+     * @return how many requests have been folded into an earlier one since the process started
+     */
+    public synchronized int getMergedRequestCount() {
+        return mMergedRequests;
+    }
+
+    private void dispatch() {
+        int reasons;
+        int merged;
+        String[] locationSettings = null;
+        synchronized (this) {
+            reasons = mPendingReasons;
+            merged = mMergedRequests;
+            if (!mPendingLocations.isEmpty()) {
+                // Only some locations were asked for, so name every one of them
+                if (mPendingPreferred) {
+                    mPendingLocations.add(Utility.getPreferredLocation(mContext));
+                }
+                locationSettings = mPendingLocations.toArray(new String[mPendingLocations.size()]);
+            }
+            mPendingReasons = 0;
+            mPendingPreferred = false;
+            mPendingLocations.clear();
+        }
+        Log.d(LOG_TAG, "Requesting sync for reasons 0x" + Integer.toHexString(reasons)
+                + ", " + merged + " requests merged so far");
+        SunshineSyncAdapter.requestImmediateSync(mContext, reasons, locationSettings);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.preference.PreferenceManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.Log;
+
+/**
+ * Decides how often the periodic sync should run.
+ *
+ * The interval starts from {@link SunshineSyncAdapter#SYNC_INTERVAL} and is stretched while
+ * syncs keep coming back without changes, while battery saver is on and while the active network
+ * is metered.  It is shortened while forecasts are moving quickly, and drops to the minimum
+ * while a weather alert is active.  While the server keeps pushing forecast invalidations the
+ * periodic sync is only a safety net, and is stretched well past its usual bounds.
+ */
+public class SyncSchedulePolicy {
+    private static final String LOG_TAG = SyncSchedulePolicy.class.getSimpleName();
+
+    // Bounds of the periodic sync interval, in seconds
+    static final int MIN_SYNC_INTERVAL = 60 * 60;
+    static final int MAX_SYNC_INTERVAL = 60 * 60 * 12;
+    // Upper bound while push invalidations are arriving
+    static final int MAX_PUSH_SYNC_INTERVAL = 60 * 60 * 24;
+
+    // Each sync in a row without changes doubles the interval, up to this many times
+    private static final int MAX_IDLE_DOUBLINGS = 2;
+
+    // A sync that changed more than this share of the rows it saw means a volatile forecast
+    private static final float VOLATILE_CHANGE_RATIO = 0.5f;
+
+    // How long a weather alert keeps the sync at its shortest interval
+    private static final long ALERT_WINDOW_MILLIS = 1000 * 60 * 60 * 6;
+
+    // How long after the last push invalidation the push channel is trusted to be working, and
+    // how much the interval is stretched meanwhile
+    private static final long PUSH_WINDOW_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int PUSH_STRETCH = 4;
+
+    static final String PREF_IDLE_SYNCS = "sync_policy_idle_syncs";
+    private static final String PREF_CHANGE_RATIO = "sync_policy_change_ratio";
+    private static final String PREF_APPLIED_INTERVAL = "sync_policy_applied_interval";
+    private static final String PREF_LAST_ALERT = "sync_policy_last_alert";
+    private static final String PREF_LAST_PUSH = "sync_policy_last_push";
+
+    private SyncSchedulePolicy() {
+    }
+
+    /**
+     * @param context Context used to read the recorded sync history and the device state
+     * @return the periodic sync interval to use right now, in seconds
+     */
+    public static int getSyncInterval(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        if (System.currentTimeMillis() - prefs.getLong(PREF_LAST_ALERT, 0) < ALERT_WINDOW_MILLIS) {
+            return MIN_SYNC_INTERVAL;
+        }
+
+        int interval = SunshineSyncAdapter.SYNC_INTERVAL;
+        if (prefs.getFloat(PREF_CHANGE_RATIO, 0) > VOLATILE_CHANGE_RATIO) {
+            interval /= 2;
+        }
+        interval <<= Math.min(prefs.getInt(PREF_IDLE_SYNCS, 0), MAX_IDLE_DOUBLINGS);
+        if (isPowerSaveMode(context)) {
+            interval *= 2;
+        }
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (ConnectivityManagerCompat.isActiveNetworkMetered(cm)) {
+            interval *= 2;
+        }
+        int maxInterval = MAX_SYNC_INTERVAL;
+        if (System.currentTimeMillis() - prefs.getLong(PREF_LAST_PUSH, 0) < PUSH_WINDOW_MILLIS) {
+            interval *= PUSH_STRETCH;
+            maxInterval = MAX_PUSH_SYNC_INTERVAL;
+        }
+        return Math.max(MIN_SYNC_INTERVAL, Math.min(maxInterval, interval));
+    }
+
+    /**
+     * @param syncInterval a periodic sync interval, in seconds
+     * @return the flex time to allow the interval, in seconds
+     */
+    public static int getFlexTime(int syncInterval) {
+        return syncInterval / 3;
+    }
+
+    /**
+     * Records how much a finished sync changed, then moves the periodic sync to the interval the
+     * policy now asks for if that differs from the one in place.  This function should not be
+     * called from the UI thread because it uses commit to write to the shared preferences.
+     *
+     * @param context Context used to store the history and reschedule the sync
+     * @param changedRows rows the sync inserted or updated
+     * @param unchangedRows rows the sync saw but left alone
+     * @param failed true if the sync could not reach the server or read its answer
+     */
+    static void onSyncFinished(Context context, long changedRows, long unchangedRows,
+                               boolean failed) {
+        if (failed) {
+            // A failed sync says nothing about how quickly the forecast moves
+            return;
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long seenRows = changedRows + unchangedRows;
+        prefs.edit()
+                .putInt(PREF_IDLE_SYNCS, changedRows == 0 ? prefs.getInt(PREF_IDLE_SYNCS, 0) + 1 : 0)
+                .putFloat(PREF_CHANGE_RATIO, seenRows == 0 ? 0f : (float) changedRows / seenRows)
+                .commit();
+        reschedule(context);
+    }
+
+    /**
+     * Records that a weather alert has come in, and shortens the periodic sync for a while.
+     *
+     * @param context Context used to store the alert and reschedule the sync
+     */
+    public static void onWeatherAlert(Context context) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putLong(PREF_LAST_ALERT, System.currentTimeMillis())
+                .commit();
+        reschedule(context);
+    }
+
+    /**
+     * Records that the server has pushed a forecast invalidation.  Changes now reach us without
+     * polling, so the periodic sync is stretched for a while.
+     *
+     * @param context Context used to store the push and reschedule the sync
+     */
+    public static void onPushInvalidation(Context context) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putLong(PREF_LAST_PUSH, System.currentTimeMillis())
+                .commit();
+        reschedule(context);
+    }
+
+    /**
+     * Applies the interval the policy asks for, unless it is already the one in place.
+     *
+     * @param context Context used to reschedule the sync
+     */
+    static void reschedule(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int syncInterval = getSyncInterval(context);
+        if (syncInterval != prefs.getInt(PREF_APPLIED_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL)) {
+            Log.d(LOG_TAG, "Periodic sync interval now " + syncInterval + "s");
+            SunshineSyncAdapter.configurePeriodicSync(context, syncInterval,
+                    getFlexTime(syncInterval));
+        }
+    }
+
+    /**
+     * Remembers the interval the periodic sync was last scheduled with.
+     */
+    static void setAppliedInterval(Context context, int syncInterval) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putInt(PREF_APPLIED_INTERVAL, syncInterval)
+                .apply();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean isPowerSaveMode(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return pm.isPowerSaveMode();
+    }
+}
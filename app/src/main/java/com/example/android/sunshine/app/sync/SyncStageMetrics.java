@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.support.annotation.IntDef;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Wall time, bytes and rows spent in each stage of one sync.
+ *
+ * The fetch and parse stages run on the fetch workers, several at a time, so their times add up
+ * across locations and can exceed the wall time of the sync.  The body is parsed straight off the
+ * wire, so the time spent downloading it is counted under parse; its bytes are counted under
+ * fetch.  The time spent blocked on the body is also tracked on its own, as download time, along
+ * with the DNS, connect and time-to-first-byte the transport reports for each request.
+ */
+class SyncStageMetrics {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({STAGE_FETCH, STAGE_PARSE, STAGE_PERSIST, STAGE_FAN_OUT})
+    @interface Stage {}
+
+    static final int STAGE_FETCH = 0;
+    static final int STAGE_PARSE = 1;
+    static final int STAGE_PERSIST = 2;
+    static final int STAGE_FAN_OUT = 3;
+
+    private static final String[] STAGE_NAMES = {"fetch", "parse", "persist", "fan-out"};
+
+    private final AtomicLongArray mNanos = new AtomicLongArray(STAGE_NAMES.length);
+    private final AtomicLongArray mBytes = new AtomicLongArray(STAGE_NAMES.length);
+    private final AtomicLongArray mRows = new AtomicLongArray(STAGE_NAMES.length);
+    private final AtomicLongArray mRuns = new AtomicLongArray(STAGE_NAMES.length);
+
+    private final long mStartedAt = System.currentTimeMillis();
+    private final long mStartNanos = System.nanoTime();
+    private final AtomicLong mDnsNanos = new AtomicLong();
+    private final AtomicLong mConnectNanos = new AtomicLong();
+    private final AtomicLong mTtfbNanos = new AtomicLong();
+    private final AtomicLong mDownloadNanos = new AtomicLong();
+
+    /**
+     * @return a start time to hand back to {@link #record}
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds one run of a stage.
+     *
+     * @param stage the stage that ran
+     * @param startNanos what {@link #start} returned when the run began
+     * @param rows the rows the run produced or wrote
+     */
+    void record(@Stage int stage, long startNanos, long rows) {
+        mNanos.addAndGet(stage, System.nanoTime() - startNanos);
+        mRows.addAndGet(stage, rows);
+        mRuns.incrementAndGet(stage);
+    }
+
+    /**
+     * Adds the network timings the transport reported for a response.
+     */
+    void recordNetwork(ForecastTransport.Response response) {
+        mDnsNanos.addAndGet(response.dnsNanos());
+        mConnectNanos.addAndGet(response.connectNanos());
+        mTtfbNanos.addAndGet(response.ttfbNanos());
+    }
+
+    /**
+     * @return the stream, counting every byte read from it, and the time spent waiting for
+     * them, under the stage
+     */
+    InputStream countBytes(final @Stage int stage, InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                long start = System.nanoTime();
+                int b = super.read();
+                mDownloadNanos.addAndGet(System.nanoTime() - start);
+                if (b != -1) {
+                    mBytes.incrementAndGet(stage);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                long start = System.nanoTime();
+                int read = super.read(buffer, offset, count);
+                mDownloadNanos.addAndGet(System.nanoTime() - start);
+                if (read > 0) {
+                    mBytes.addAndGet(stage, read);
+                }
+                return read;
+            }
+        };
+    }
+
+    long getMillis(@Stage int stage) {
+        return mNanos.get(stage) / 1000000;
+    }
+
+    long getBytes(@Stage int stage) {
+        return mBytes.get(stage);
+    }
+
+    long getRows(@Stage int stage) {
+        return mRows.get(stage);
+    }
+
+    /**
+     * @return the timings of the sync so far as a row of the sync log, without the trigger,
+     * outcome or location count
+     */
+    ContentValues toLogValues() {
+        long downloadMillis = mDownloadNanos.get() / 1000000;
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.SyncLogEntry.COLUMN_STARTED_AT, mStartedAt);
+        values.put(WeatherContract.SyncLogEntry.COLUMN_DURATION,
+                (System.nanoTime() - mStartNanos) / 1000000);
+        values.put(WeatherContract.SyncLogEntry.COLUMN_DNS, mDnsNanos.get() / 1000000);
+        values.put(WeatherContract.SyncLogEntry.COLUMN_CONNECT, mConnectNanos.get() / 1000000);
+        values.put(WeatherContract.SyncLogEntry.COLUMN_TTFB, mTtfbNanos.get() / 1000000);
+        values.put(WeatherContract.SyncLogEntry.COLUMN_DOWNLOAD, downloadMillis);
+        values.put(WeatherContract.SyncLogEntry.COLUMN_PARSE,
+                Math.max(0, getMillis(STAGE_PARSE) - downloadMillis));
+        values.put(WeatherContract.SyncLogEntry.COLUMN_COMMIT, getMillis(STAGE_PERSIST));
+        values.put(WeatherContract.SyncLogEntry.COLUMN_BYTES, getBytes(STAGE_FETCH));
+        values.put(WeatherContract.SyncLogEntry.COLUMN_ROWS, getRows(STAGE_PERSIST));
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            if (stage > 0) {
+                summary.append(", ");
+            }
+            summary.append(STAGE_NAMES[stage]).append(' ')
+                    .append(getMillis(stage)).append("ms/")
+                    .append(mRuns.get(stage)).append(" runs/")
+                    .append(getBytes(stage)).append("B/")
+                    .append(getRows(stage)).append(" rows");
+        }
+        return summary.toString();
+    }
+}